@@ -18,6 +18,7 @@ package org.osumercury.badgemaker;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -33,7 +34,7 @@ public class Badge {
     public final String primaryText;
     public final String secondaryText;
     public final int number;
-    public final BufferedImage background;
+    private final ImageRef background;
     public final Color backgroundColor;
     public final Color textBackgroundColor;
     public final Color textColor;
@@ -55,6 +56,13 @@ public class Badge {
     public Badge(int number, String name, String secondary,
                  BufferedImage background, String backgroundColor,
                  String textBackgroundColor, String textColor) {
+        this(number, name, secondary, ImageRef.of(background),
+             backgroundColor, textBackgroundColor, textColor);
+    }
+    
+    public Badge(int number, String name, String secondary,
+                 ImageRef background, String backgroundColor,
+                 String textBackgroundColor, String textColor) {
         this.number = number;
         this.primaryText = name;
         this.secondaryText = secondary;
@@ -102,6 +110,41 @@ public class Badge {
         return extraData;
     }
     
+    public boolean hasBackground() {
+        return background != null;
+    }
+    
+    /**
+     * @return the background image reference, or null if there is none
+     */
+    public ImageRef getBackgroundRef() {
+        return background;
+    }
+    
+    /**
+     * @return the background image, or null if there is none or it failed
+     */
+    public BufferedImage getBackground() {
+        return getBackground(null);
+    }
+    
+    /**
+     * Load the background image at a resolution that covers box, usually
+     * the size reported by {@link Renderer#getBackgroundSize}
+     */
+    public BufferedImage getBackground(Dimension box) {
+        if(background == null) {
+            return null;
+        }
+        try {
+            return background.get(box);
+        } catch(IOException ioe) {
+            Log.err("Failed to load image " + background + ": " +
+                    ioe.getMessage());
+            return null;
+        }
+    }
+    
     public int getBackgroundScaling() {
         return backgroundScaling;
     }
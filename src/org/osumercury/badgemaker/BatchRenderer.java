@@ -0,0 +1,216 @@
+/*
+    Copyright 2017 Wira Mulia
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+package org.osumercury.badgemaker;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the per-badge work of an output job on a pool of worker threads and
+ * hands the results back to the calling thread in badge order. Background
+ * images of upcoming badges are decoded ahead on a separate thread.
+ *
+ * @author wira
+ */
+public class BatchRenderer {
+    // backgrounds decoded ahead of the badges being rendered
+    private static final int PREFETCH = 8;
+    
+    private static int threads = Runtime.getRuntime().availableProcessors();
+
+    public static void setThreads(int n) {
+        threads = n < 1 ? 1 : n;
+    }
+
+    public static int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Work done for each badge on a worker thread, e.g. rendering and encoding
+     */
+    public interface Stage<T> {
+        public T process(Renderer job, Badge badge) throws Exception;
+    }
+
+    /**
+     * Receives stage results on the calling thread, in badge order. Returning
+     * false stops the job
+     */
+    public interface Sink<T> {
+        public boolean accept(Badge badge, T result) throws Exception;
+    }
+
+    /**
+     * Decides whether the background of an upcoming badge is decoded ahead
+     * of its stage. Called on the prefetch thread
+     */
+    public interface Prefetch {
+        public boolean needsBackground(Renderer job, Badge badge);
+    }
+
+    /**
+     * Process every badge with the stage on the worker pool and feed the
+     * results to the sink in order. The renderer settings are frozen when the
+     * job starts and every stage gets the same snapshot. At most a few badges
+     * per worker are in flight at any time so memory use does not grow with
+     * the badge count.
+     *
+     * @return false if the job was cancelled through the progress handle or
+     *         stopped by the sink
+     */
+    public static <T> boolean run(Progress p, Renderer r, List<Badge> badges,
+                                  Stage<T> stage, Sink<T> sink) {
+        return run(p, r, badges.iterator(), badges.size(), stage, sink);
+    }
+    
+    /**
+     * Process badges as they are read from an iterator, e.g. a CSV file
+     * being streamed. Badges are only read a little ahead of the ones being
+     * rendered
+     *
+     * @param total number of badges for progress reporting, or -1 if unknown
+     */
+    public static <T> boolean run(Progress p, Renderer r,
+                                  Iterator<Badge> badges, int total,
+                                  Stage<T> stage, Sink<T> sink) {
+        // cached renders never look at the background
+        return run(p, r, badges, total,
+                   (job, badge) -> !RenderCache.contains(job, badge),
+                   stage, sink);
+    }
+
+    /**
+     * Process badges with a stage that does not need the background of
+     * every badge, e.g. because some are not rendered at all
+     */
+    public static <T> boolean run(Progress p, Renderer r,
+                                  Iterator<Badge> badges, int total,
+                                  Prefetch prefetch, Stage<T> stage,
+                                  Sink<T> sink) {
+        final Renderer job = r.snapshot();
+        // renderers without snapshot support are not safe to share
+        final int n = job.isSnapshot() ? threads : 1;
+        final int window = 2 * n;
+        ExecutorService pool = Executors.newFixedThreadPool(n, (runnable) -> {
+            Thread t = new Thread(runnable, "mercbm-render");
+            t.setDaemon(true);
+            return t;
+        });
+        ExecutorService prefetcher = Executors.newSingleThreadExecutor(
+                (runnable) -> {
+            Thread t = new Thread(runnable, "mercbm-prefetch");
+            t.setDaemon(true);
+            return t;
+        });
+        Deque<Badge> upcoming = new ArrayDeque<>();
+        Deque<Badge> pendingBadges = new ArrayDeque<>();
+        Deque<Future<T>> pending = new ArrayDeque<>();
+        int badgeNum = 1;
+        int read = 0;
+        try {
+            while(true) {
+                // read ahead, the first window of badges load their own
+                // backgrounds
+                while(upcoming.size() < window + PREFETCH &&
+                      badges.hasNext()) {
+                    Badge b = badges.next();
+                    upcoming.add(b);
+                    if(read++ >= window) {
+                        prefetch(prefetcher, prefetch, job, b);
+                    }
+                }
+                Badge next = upcoming.poll();
+                if(next == null) {
+                    break;
+                }
+                pendingBadges.add(next);
+                pending.add(pool.submit(() -> stage.process(job, next)));
+                if(pending.size() < window) {
+                    continue;
+                }
+                if(!drain(p, pendingBadges, pending, sink,
+                          badgeNum++, total)) {
+                    return false;
+                }
+            }
+            while(!pending.isEmpty()) {
+                if(!drain(p, pendingBadges, pending, sink,
+                          badgeNum++, total)) {
+                    return false;
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+            prefetcher.shutdownNow();
+        }
+        return true;
+    }
+    
+    private static void prefetch(ExecutorService prefetcher,
+                                 Prefetch prefetch, Renderer job,
+                                 Badge badge) {
+        ImageRef background = badge.getBackgroundRef();
+        if(background == null || background.getFile() == null) {
+            return;
+        }
+        prefetcher.submit(() -> {
+            if(prefetch.needsBackground(job, badge)) {
+                background.prefetch(job.getBackgroundSize(badge));
+            }
+        });
+    }
+
+    private static <T> boolean drain(Progress p, Deque<Badge> pendingBadges,
+                                     Deque<Future<T>> pending, Sink<T> sink,
+                                     int badgeNum, int total) {
+        Badge badge = pendingBadges.poll();
+        Future<T> f = pending.poll();
+        String badgeTitle = badge.number + "-" + badge.primaryText;
+        if(p != null && p.cancel) {
+            for(Future<T> other : pending) {
+                other.cancel(true);
+            }
+            return false;
+        }
+        try {
+            if(!sink.accept(badge, f.get())) {
+                return false;
+            }
+        } catch(ExecutionException e) {
+            Log.err("Failed to render " + badgeTitle + ", reason: " +
+                    e.getCause());
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch(Exception e) {
+            Log.err("Failed to output " + badgeTitle + ", reason: " + e);
+        }
+        if(p != null) {
+            if(total > 0) {
+                p.percent = (float)badgeNum / total;
+            }
+            p.update();
+        }
+        return true;
+    }
+}
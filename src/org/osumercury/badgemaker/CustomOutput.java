@@ -24,4 +24,16 @@ import java.util.List;
 public interface CustomOutput {
     abstract void save(Renderer r, Progress p, 
                        List<Badge> badges, String[] args);
+    
+    /**
+     * Custom output that joins the render pass of the other outputs and
+     * takes each badge as it is rendered instead of rendering the badges
+     * itself in save
+     */
+    public interface Streaming extends CustomOutput, RenderPass.Output {
+        /**
+         * Called with the command line arguments before the first badge
+         */
+        public void begin(Renderer r, String[] args);
+    }
 }
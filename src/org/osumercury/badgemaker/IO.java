@@ -15,16 +15,39 @@
  */
 package org.osumercury.badgemaker;
 
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.imageio.ImageIO;
+import org.apache.pdfbox.io.MemoryUsageSetting;
 import org.apache.pdfbox.pdmodel.*;
 import org.apache.pdfbox.pdmodel.graphics.image.*;
 import org.apache.pdfbox.pdmodel.common.PDRectangle;
@@ -38,6 +61,87 @@ public class IO {
     public static final int UNIT_INCHES = 0;
     public static final int UNIT_MM = 1;
     
+    private static File pdfScratchDirectory = null;
+    private static long pdfMemoryLimit = 64L * 1024 * 1024;
+    private static boolean pdfVector = false;
+    private static boolean rewrite = false;
+    private static boolean prune = false;
+    
+    /**
+     * Set where PDF generation keeps page content and images that do not
+     * fit in memory, null uses the system temporary directory
+     */
+    public static void setPDFScratchDirectory(File dir) {
+        pdfScratchDirectory = dir;
+    }
+    
+    public static File getPDFScratchDirectory() {
+        return pdfScratchDirectory;
+    }
+    
+    /**
+     * Set how much PDF data is kept in memory before spilling to scratch
+     * files, 0 always uses scratch files and a negative limit keeps the
+     * whole document in memory
+     */
+    public static void setPDFMemoryLimit(long bytes) {
+        pdfMemoryLimit = bytes;
+    }
+    
+    public static long getPDFMemoryLimit() {
+        return pdfMemoryLimit;
+    }
+    
+    /**
+     * Draw badges into PDFs as shapes and glyph outlines instead of embedding
+     * rendered images, renderers without vector support are still embedded
+     * as images
+     */
+    public static void setPDFVector(boolean vector) {
+        pdfVector = vector;
+    }
+    
+    public static boolean isPDFVector() {
+        return pdfVector;
+    }
+    
+    /**
+     * Write every PNG and JPG file even if the output directory manifest
+     * says it is up to date
+     */
+    public static void setRewrite(boolean rewrite) {
+        IO.rewrite = rewrite;
+    }
+    
+    public static boolean isRewrite() {
+        return rewrite;
+    }
+    
+    /**
+     * Delete PNG and JPG files recorded in the output directory manifest
+     * that were not output again, e.g. because their rows were removed
+     */
+    public static void setPrune(boolean prune) {
+        IO.prune = prune;
+    }
+    
+    public static boolean isPrune() {
+        return prune;
+    }
+    
+    private static MemoryUsageSetting getPDFMemoryUsage() {
+        if(pdfMemoryLimit < 0) {
+            return MemoryUsageSetting.setupMainMemoryOnly();
+        }
+        MemoryUsageSetting setting = pdfMemoryLimit == 0 ?
+                MemoryUsageSetting.setupTempFileOnly() :
+                MemoryUsageSetting.setupMixed(pdfMemoryLimit);
+        if(pdfScratchDirectory != null) {
+            setting.setTempDir(pdfScratchDirectory);
+        }
+        return setting;
+    }
+    
     public static void generatePDF(Renderer r, Progress p,
                                    PDRectangle pdPageSize,
                                    float pageHMargin, float pageVMargin,
@@ -47,76 +151,258 @@ public class IO {
                                    boolean PNG,
                                    List<Badge> badges,
                                    File output) {
-        boolean mm = units == UNIT_MM;
+        generatePDF(r, p, pdPageSize, pageHMargin, pageVMargin,
+                    badgeHSpacing, badgeVSpacing, units, landscape, PNG,
+                    badges.iterator(), badges.size(), output);
+    }
+    
+    /**
+     * Generate a PDF from a stream of badges, total is the number of badges
+     * or -1 if it is not known in advance
+     */
+    public static void generatePDF(Renderer r, Progress p,
+                                   PDRectangle pdPageSize,
+                                   float pageHMargin, float pageVMargin,
+                                   float badgeHSpacing, float badgeVSpacing,
+                                   int units,
+                                   boolean landscape,
+                                   boolean PNG,
+                                   Iterator<Badge> badges, int total,
+                                   File output) {
+        if(!badges.hasNext()) {
+            Log.err("No badges to output");
+            if(p != null) {
+                p.complete();
+            }
+            return;
+        }
         
-        // set up our coordinate system
-        // pdf uses 1/72" coodinate units, we use this to convert our internal
-        // dimensions to pdf coordinates
-        float hMargin = (mm ? 1/25.4f : 1.0f) * pageHMargin * 72.0f;
-        float vMargin = (mm ? 1/25.4f : 1.0f) * pageVMargin * 72.0f;
-        float hSpacing = (mm ? 1/25.4f : 1.0f) * badgeHSpacing * 72.0f;
-        float vSpacing = (mm ? 1/25.4f : 1.0f) * badgeVSpacing * 72.0f;
+        PageBuilder builder = new PageBuilder(pdPageSize,
+                                              pageHMargin, pageVMargin,
+                                              badgeHSpacing, badgeVSpacing,
+                                              units, landscape, PNG);
+        if(!pdfVector) {
+            new RenderPass().add(new PDFOutput(builder, output))
+                            .run(p, r, badges, total);
+            return;
+        }
         
-        if(badges.isEmpty()) {
-            Log.err("No badges to output");
+        // badges are drawn in order on the writer thread, the workers only
+        // decode backgrounds ahead of it
+        boolean completed = BatchRenderer.run(p, r, badges, total,
+                                              (job, badge) -> {
+            badge.getBackground(job.getBackgroundSize(badge));
+            return job;
+        }, (badge, job) -> builder.draw(p, badge, job));
+        if(!completed) {
+            builder.close();
+            if(p != null && p.cancel) {
+                Log.d(0, "CANCELLED");
+            }
             if(p != null) {
                 p.complete();
             }
             return;
         }
         
-        PDDocument doc = new PDDocument();
-        String badgeTitle;
-        float offX = hMargin;
-        float offY = vMargin;
-        float pageW = landscape ? pdPageSize.getHeight() : pdPageSize.getWidth();
-        float pageH = landscape ? pdPageSize.getWidth() : pdPageSize.getHeight();
-        float limitW = pageW - 2*hMargin;
-        float limitH = pageH - 2*vMargin;
-        float badgeW;
-        float badgeH;
-        float largestH = -1;
-        int badgeNum = 1;
-        PDPage page = null;
-        PDPageContentStream pS = null;
-        Log.d(0, "    Generating PDF model (" + 
-                           String.format("%.2f", pageW) + " x " +
-                           String.format("%.2f", pageH) + ") " +
-                           "- " + (PNG ? "lossless images" : "JPEG images"));
-        for(Badge badge : badges) {
-            badgeTitle = badge.number + "-" + badge.primaryText;
-            badgeW = (mm ? 1/25.4f : 1.0f) * badge.getWidth() * 72.0f;
-            badgeH = (mm ? 1/25.4f : 1.0f) * badge.getHeight() * 72.0f;
+        builder.save(p, output);
+        
+        if(p != null) {
+            p.complete();
+        }
+    }
+    
+    /**
+     * PDF output for a render pass, badges are embedded as images. Vector
+     * PDFs are drawn through the renderer by generatePDF instead
+     */
+    public static RenderPass.Output pdfOutput(PDRectangle pdPageSize,
+                                              float pageHMargin,
+                                              float pageVMargin,
+                                              float badgeHSpacing,
+                                              float badgeVSpacing,
+                                              int units,
+                                              boolean landscape,
+                                              boolean PNG,
+                                              File output) {
+        return new PDFOutput(new PageBuilder(pdPageSize,
+                                             pageHMargin, pageVMargin,
+                                             badgeHSpacing, badgeVSpacing,
+                                             units, landscape, PNG),
+                             output);
+    }
+    
+    private static class PDFOutput implements RenderPass.Output {
+        private final PageBuilder builder;
+        private final File output;
+        private boolean empty = true;
+        
+        public PDFOutput(PageBuilder builder, File output) {
+            this.builder = builder;
+            this.output = output;
+        }
+        
+        @Override
+        public void prepare(RenderPass.Rendered badge) throws IOException {
+            // encode on the worker, the document only takes the JPEG data
+            if(!builder.PNG && badge.getImage() != null && badge.isOpaque()) {
+                badge.getJPEG();
+            }
+        }
+        
+        @Override
+        public boolean accept(Progress p, RenderPass.Rendered badge) {
+            empty = false;
+            return builder.place(p, badge);
+        }
+        
+        @Override
+        public boolean reuses(String key) {
+            return builder.hasImage(key);
+        }
+        
+        @Override
+        public void finish(Progress p, boolean completed) {
+            if(!completed) {
+                builder.close();
+            } else if(empty) {
+                Log.err("No badges to output");
+                builder.close();
+            } else {
+                builder.save(p, output);
+            }
+        }
+    }
+    
+    /**
+     * Lays out rendered badges on PDF pages. Badges have to be placed in
+     * order from a single thread
+     */
+    private static class PageBuilder {
+        // encoded images and page streams live in the document scratch
+        // buffer, which spills to disk past the memory limit
+        private final PDDocument doc = new PDDocument(getPDFMemoryUsage());
+        private final PDRectangle pdPageSize;
+        private final boolean landscape;
+        private final boolean PNG;
+        private final PageLayout layout;
+        private PDPage page = null;
+        private PDPageContentStream pS = null;
+        private final Map<String, PDImageXObject> images = new HashMap<>();
+        private final PDFGraphics2D.Resources resources;
+        private int reused = 0;
+        
+        public PageBuilder(PDRectangle pdPageSize,
+                           float pageHMargin, float pageVMargin,
+                           float badgeHSpacing, float badgeVSpacing,
+                           int units, boolean landscape, boolean PNG) {
+            this.pdPageSize = pdPageSize;
+            this.landscape = landscape;
+            this.PNG = PNG;
+            resources = new PDFGraphics2D.Resources(doc, PNG);
+            layout = new PageLayout(pdPageSize, pageHMargin, pageVMargin,
+                                    badgeHSpacing, badgeVSpacing,
+                                    units, landscape);
+            Log.d(0, "    Generating PDF model (" + 
+                               String.format("%.2f", layout.getPageWidth()) +
+                               " x " +
+                               String.format("%.2f", layout.getPageHeight()) +
+                               ") - " + (pdfVector ? "vector, " : "") +
+                               (PNG ? "lossless images" : "JPEG images"));
+        }
+        
+        public boolean hasImage(String key) {
+            return images.containsKey(key);
+        }
+        
+        /**
+         * Place a badge, badges with the same key share one embedded image
+         */
+        public boolean place(Progress p, RenderPass.Rendered rendered) {
+            Badge badge = rendered.getBadge();
+            Rectangle2D.Float box = next(p, badge);
+            if(box == null) {
+                return false;
+            }
+            try {
+                PDImageXObject img = images.get(rendered.getKey());
+                if(img == null) {
+                    img = embed(rendered);
+                    images.put(rendered.getKey(), img);
+                } else {
+                    reused++;
+                }
+                pS.drawImage(img, box.x, box.y, box.width, box.height);
+            } catch(IOException ioe) {
+                Log.err("Failed to read image for " + badge.number + "-" +
+                        badge.primaryText);
+            }
+            return true;
+        }
+        
+        private PDImageXObject embed(RenderPass.Rendered rendered)
+                throws IOException {
+            BufferedImage image = rendered.getImage();
+            if(PNG) {
+                return LosslessFactory.createFromImage(doc, image);
+            }
+            if(rendered.isOpaque()) {
+                // embed the encoded JPEG as is, the JPG output shares it
+                return JPEGFactory.createFromStream(doc,
+                        new ByteArrayInputStream(rendered.getJPEG()));
+            }
+            // transparent badges also need a soft mask
+            return JPEGFactory.createFromImage(doc, image);
+        }
+        
+        /**
+         * Draw a badge through the renderer, clipped to its place on the page
+         */
+        public boolean draw(Progress p, Badge badge, Renderer job) {
+            Rectangle2D.Float box = next(p, badge);
+            if(box == null) {
+                return false;
+            }
+            Dimension d = badge.getPixelDimension();
+            // badge pixels to page points, the page y axis points up
+            AffineTransform at = new AffineTransform(
+                    box.width / d.width, 0, 0, -box.height / d.height,
+                    box.x, box.y + box.height);
+            try {
+                pS.saveGraphicsState();
+                pS.addRect(box.x, box.y, box.width, box.height);
+                pS.clip();
+                PDFGraphics2D g = new PDFGraphics2D(resources, pS, at, box);
+                try {
+                    job.renderTo(g, badge);
+                } finally {
+                    g.dispose();
+                    pS.restoreGraphicsState();
+                }
+            } catch(IOException ioe) {
+                Log.err("Failed to draw " + badge.number + "-" +
+                        badge.primaryText + ": " + ioe);
+            }
+            return true;
+        }
+        
+        /**
+         * Lay out the next badge, starting a new page when it does not fit
+         *
+         * @return where the badge goes in page coordinates, or null if the
+         *         page could not be created
+         */
+        private Rectangle2D.Float next(Progress p, Badge badge) {
+            String badgeTitle = badge.number + "-" + badge.primaryText;
+            Rectangle2D.Float box = layout.next(badge);
             Log.d(0, "      Placing " +
                                Main.pad(25, badgeTitle) + " (" +
-                               String.format("%.2f", badgeW) + " x " +
-                               String.format("%.2f", badgeH) + ")");
+                               String.format("%.2f", box.width) + " x " +
+                               String.format("%.2f", box.height) + ")");
             if(p != null) {
-                if(p.cancel) {
-                    try {
-                        if(pS != null) {
-                            pS.close();
-                        }
-                        doc.close();
-                    } catch(IOException ioe) {
-                        Log.err("Failed to close document "
-                                           + ioe);
-                    }
-                    p.complete();
-                    Log.d(0, "CANCELLED");
-                    return;
-                }
                 p.text = "PDF: processing " + badgeTitle;
-                p.percent = (float)badgeNum / badges.size();
-                p.update();
-            }
-            badgeNum++;
-            if(page == null || 
-                ( // check if we need to be on a new page
-                    (offX + hSpacing + badgeW) > (limitW+hMargin) &&
-                    (offY + largestH + vSpacing + badgeH) > (limitH+vMargin)
-                ))
-            {
+            }
+            if(layout.isNewPage()) {
                 // add previous page to doc if we're not on first page
                 if(page != null) {
                     doc.addPage(page);
@@ -140,60 +426,208 @@ public class IO {
                 } catch(IOException ioe) {
                     Log.err("Failed to get page content stream: "
                                        + ioe);
-                    if(p != null) {
-                        p.complete();
-                    }
-                    return;
+                    pS = null;
+                    return null;
                 }
-                // reset our position
-                offX = hMargin;
-                offY = vMargin;
-                largestH = -1;
             }
-            
+            return box;
+        }
+        
+        public void save(Progress p, File output) {
+            doc.addPage(page);
             try {
-                PDImageXObject img = PNG ? 
-                                     LosslessFactory.
-                                     createFromImage(doc, r.render(badge))
-                                     : JPEGFactory.
-                                     createFromImage(doc, r.render(badge));
-                largestH = badgeH > largestH ? badgeH : largestH;
-                if(offX + hSpacing + badgeW > (limitW+hMargin)) {
-                    // Log.d(0, "    New row");
-                    offX = hMargin;
-                    offY += largestH + vSpacing;
+                if(pS != null) {
+                    pS.close();
+                }
+                if(reused > 0) {
+                    Log.d(0, "    " + reused + " badges reuse identical images");
                 }
-                offX += hSpacing;
+                Log.d(0, "    Saving PDF to " + output.getAbsolutePath());
+                if(p != null) {
+                    p.text = "Saving to " + output.getName();
+                    p.update();
+                }
+                doc.save(output);
+            } catch(IOException ioe) {
+                Log.err("Failed to save to " +
+                                   output.getAbsolutePath() + " reason: " + ioe);
+            }
+            
+            try {
+                doc.close();
+            } catch(IOException ioe) {
+                Log.err("Failed to close " +
+                                   output.getAbsolutePath() + " reason: " + ioe);
+            }
+        }
+        
+        public void close() {
+            try {
                 if(pS != null) {
-                    pS.drawImage(img, offX, offY, badgeW, badgeH);
+                    pS.close();
                 }
-                offX += badgeW;
+                doc.close();
             } catch(IOException ioe) {
-                Log.err("Failed to read image for " + badgeTitle);
+                Log.err("Failed to close document "
+                                   + ioe);
             }
         }
+    }
+    
+    public static void savePNG(Renderer r, Progress p, List<Badge> badges,
+                               String pngOutputDir) {
+        savePNG(r, p, badges.iterator(), badges.size(), pngOutputDir);
+    }
+    
+    public static void savePNG(Renderer r, Progress p, Iterator<Badge> badges,
+                               int total, String pngOutputDir) {
+        new RenderPass().add(pngOutput(pngOutputDir))
+                        .run(p, r, badges, total);
+    }
+        
+    public static void saveJPG(Renderer r, Progress p, List<Badge> badges,
+                               String jpgOutputDir) {
+        saveJPG(r, p, badges.iterator(), badges.size(), jpgOutputDir);
+    }
+    
+    public static void saveJPG(Renderer r, Progress p, Iterator<Badge> badges,
+                               int total, String jpgOutputDir) {
+        new RenderPass().add(jpgOutput(jpgOutputDir))
+                        .run(p, r, badges, total);
+    }
+    
+    /**
+     * Render pass output that saves every badge as a PNG file
+     */
+    public static RenderPass.Output pngOutput(String pngOutputDir) {
+        return new FileOutput(pngOutputDir, true);
+    }
+    
+    /**
+     * Render pass output that saves every badge as a JPG file
+     */
+    public static RenderPass.Output jpgOutput(String jpgOutputDir) {
+        return new FileOutput(jpgOutputDir, false);
+    }
+    
+    private static class FileOutput implements RenderPass.Output {
+        private final String dir;
+        private final boolean png;
+        private final String settings;
+        private final OutputManifest manifest;
+        private int written = 0;
+        private int skipped = 0;
+        
+        public FileOutput(String dir, boolean png) {
+            this.dir = dir;
+            this.png = png;
+            // files encoded with other settings are not up to date
+            this.settings = png ?
+                    "png-" + PNGEncoder.getLevel() + "-" +
+                    PNGEncoder.getFilterName(PNGEncoder.getFilter()) :
+                    "jpg-" + JPEGEncoder.getQuality() + "-" +
+                    JPEGEncoder.getSubsamplingName(
+                            JPEGEncoder.getSubsampling());
+            this.manifest = new OutputManifest(new File(dir),
+                                               png ? "png" : "jpg");
+        }
         
-        doc.addPage(page);
-        try {
-            if(pS != null) {
-                pS.close();
+        private String getFileName(Badge b) {
+            return b.number + "-" + b.primaryText + (png ? ".png" : ".jpg");
+        }
+        
+        private boolean isCurrent(Badge b, String key) {
+            return !rewrite &&
+                   manifest.isCurrent(getFileName(b), key + "/" + settings);
+        }
+        
+        @Override
+        public boolean needsImage(Badge badge, String key) {
+            return !isCurrent(badge, key);
+        }
+        
+        @Override
+        public void prepare(RenderPass.Rendered badge) throws IOException {
+            if(isCurrent(badge.getBadge(), badge.getKey())) {
+                return;
             }
-            Log.d(0, "    Saving PDF to " + output.getAbsolutePath());
-            if(p != null) {
-                p.text = "Saving to " + output.getName();
-                p.update();
+            // encode on the worker too, only the file write is sequential
+            if(png) {
+                badge.getPNG();
+            } else {
+                badge.getJPEG();
             }
-            doc.save(output);
-        } catch(IOException ioe) {
-            Log.err("Failed to save to " +
-                               output.getAbsolutePath() + " reason: " + ioe);
         }
         
-        try {
-            doc.close();
-        } catch(IOException ioe) {
-            Log.err("Failed to close " +
-                               output.getAbsolutePath() + " reason: " + ioe);
+        @Override
+        public boolean accept(Progress p, RenderPass.Rendered badge)
+                throws IOException {
+            Badge b = badge.getBadge();
+            String fileName = getFileName(b);
+            if(isCurrent(b, badge.getKey())) {
+                // also covers identical rows written earlier in this run
+                manifest.kept(fileName);
+                skipped++;
+                return true;
+            }
+            if(writeOutput(p, new File(dir + "/" + fileName),
+                           png ? badge.getPNG() : badge.getJPEG())) {
+                manifest.written(fileName, badge.getKey() + "/" + settings);
+                written++;
+            } else {
+                manifest.forget(fileName);
+            }
+            return true;
+        }
+        
+        @Override
+        public boolean needsAlpha() {
+            return png;
+        }
+        
+        @Override
+        public void finish(Progress p, boolean completed) {
+            // a cancelled run has not seen every row, nothing is stale yet
+            int deleted = prune && completed ? manifest.prune(p) : 0;
+            manifest.save();
+            Log.d(0, (png ? "PNG " : "JPG ") + dir + ": " + written +
+                     " written, " + skipped + " skipped, " + deleted +
+                     " deleted");
+        }
+    }
+    
+    public static void saveSVG(Renderer r, Progress p, List<Badge> badges,
+                               String svgOutputDir, boolean lossless) {
+        saveSVG(r, p, badges.iterator(), badges.size(), svgOutputDir,
+                lossless);
+    }
+    
+    /**
+     * Save badges as SVG documents drawn through Renderer.renderTo. Images
+     * are saved once under the images directory next to the documents
+     *
+     * @param lossless save opaque images as PNG instead of JPEG
+     */
+    public static void saveSVG(Renderer r, Progress p, Iterator<Badge> badges,
+                               int total, String svgOutputDir,
+                               boolean lossless) {
+        SVGGraphics2D.Images images =
+                new SVGGraphics2D.Images(new File(svgOutputDir), lossless);
+        boolean completed = BatchRenderer.run(p, r, badges, total,
+                                              (job, badge) -> {
+            SVGGraphics2D g = new SVGGraphics2D(images,
+                                                badge.getPixelDimension());
+            job.renderTo(g, badge);
+            g.dispose();
+            return g.toSVG().getBytes(StandardCharsets.UTF_8);
+        }, (badge, data) -> {
+            String fileName = badge.number + "-" + 
+                              badge.primaryText + ".svg";
+            writeOutput(p, new File(svgOutputDir + "/" + fileName), data);
+            return true;
+        });
+        if(!completed) {
+            Log.d(0, "CANCELLED");
         }
         
         if(p != null) {
@@ -201,82 +635,204 @@ public class IO {
         }
     }
     
-    public static void savePNG(Renderer r, Progress p, List<Badge> badges,
-                               String pngOutputDir) {
-        int badgeNum = 1;
-        for(Badge badge : badges) {
-            String fileName = null;
-            try {
-                fileName = badge.number + "-" + 
-                           badge.primaryText + ".png";
-                File outFile = new File(pngOutputDir + "/" + fileName);
-                if(p != null) {
-                    if(p.cancel) {
-                        p.complete();
-                        Log.d(0, "CANCELLED");
-                        return;
+    /**
+     * Compose pages with the PDF page layout and save each page as a numbered
+     * image. Pages are laid out in order on the calling thread, then every
+     * page is drawn through Renderer.renderTo and encoded on its own worker
+     *
+     * @param dpi page resolution in pixels per inch
+     * @param PNG save pages as PNG instead of JPEG
+     * @param total number of badges for progress reporting, or -1 if unknown
+     */
+    public static void savePages(Renderer r, Progress p,
+                                 PDRectangle pageSize,
+                                 float pageHMargin, float pageVMargin,
+                                 float badgeHSpacing, float badgeVSpacing,
+                                 int units, boolean landscape,
+                                 int dpi, boolean PNG,
+                                 Iterator<Badge> badges, int total,
+                                 String pageOutputDir) {
+        PageLayout layout = new PageLayout(pageSize, pageHMargin, pageVMargin,
+                                           badgeHSpacing, badgeVSpacing,
+                                           units, landscape);
+        float scale = dpi / 72.0f;
+        int pageW = Math.round(layout.getPageWidth() * scale);
+        int pageH = Math.round(layout.getPageHeight() * scale);
+        String ext = PNG ? "png" : "jpg";
+        Log.d(0, "    Composing pages (" + pageW + " x " + pageH + ", " +
+                 dpi + " dpi) - " + (PNG ? "PNG" : "JPEG"));
+
+        final Renderer job = r.snapshot();
+        // renderers without snapshot support are not safe to share
+        final int n = job.isSnapshot() ? BatchRenderer.getThreads() : 1;
+        ExecutorService pool = Executors.newFixedThreadPool(n, (runnable) -> {
+            Thread t = new Thread(runnable, "mercbm-page");
+            t.setDaemon(true);
+            return t;
+        });
+        // finished pages wait here until they can be written in order, a
+        // few pages per worker at most
+        Deque<PageImage> pending = new ArrayDeque<>();
+        PageImage page = null;
+        int placed = 0;
+        boolean completed = true;
+        try {
+            while(badges.hasNext() || page != null) {
+                Badge badge = badges.hasNext() ? badges.next() : null;
+                Rectangle2D.Float box = null;
+                if(badge != null) {
+                    box = layout.next(badge);
+                    Log.d(0, "      Placing " +
+                             Main.pad(25, badge.number + "-" +
+                                          badge.primaryText) +
+                             " on page " + layout.getPageCount());
+                }
+                if(page != null && (badge == null || layout.isNewPage())) {
+                    PageImage full = page;
+                    full.data = pool.submit(() ->
+                            composePage(job, full, pageW, pageH, scale,
+                                        layout.getPageHeight(), ext));
+                    pending.add(full);
+                    page = null;
+                    if(pending.size() > n) {
+                        placed += pending.peek().badges.size();
+                        if(!writePage(p, pending, pageOutputDir, ext,
+                                      placed, total)) {
+                            completed = false;
+                            break;
+                        }
                     }
-                    p.text = "Saving " + outFile.getName();
-                    p.percent = (float)badgeNum / badges.size();
-                    p.update();
                 }
-                badgeNum++;
-                Log.d(0, "    Saving to " + outFile.getAbsolutePath());
-                if(outFile.exists() && !outFile.canWrite()) {
-                    Log.err("Unable to write to: " +
-                                       outFile.getAbsolutePath());
-                } else {
-                    outFile.createNewFile();
-                    ImageIO.write(r.render(badge), "png", outFile);
+                if(badge != null) {
+                    if(page == null) {
+                        page = new PageImage(layout.getPageCount());
+                    }
+                    page.badges.add(badge);
+                    page.boxes.add(box);
                 }
-            } catch(Exception e) {
-                Log.err("Failed to write " + fileName +
-                                   ", reason: " + e);
             }
+            while(completed && !pending.isEmpty()) {
+                placed += pending.peek().badges.size();
+                completed = writePage(p, pending, pageOutputDir, ext,
+                                      placed, total);
+            }
+        } finally {
+            pool.shutdownNow();
         }
-        
+        if(!completed) {
+            Log.d(0, "CANCELLED");
+        } else if(layout.getPageCount() == 0) {
+            Log.err("No badges to output");
+        }
+
         if(p != null) {
             p.complete();
         }
     }
-        
-    public static void saveJPG(Renderer r, Progress p, List<Badge> badges,
-                               String jpgOutputDir) {
-        int badgeNum = 1;
-        for(Badge badge : badges) {
-            String fileName = null;
+
+    /**
+     * Badges laid out on one page and the encoded page once it is composed
+     */
+    private static class PageImage {
+        private final int number;
+        private final List<Badge> badges = new ArrayList<>();
+        private final List<Rectangle2D.Float> boxes = new ArrayList<>();
+        private Future<byte[]> data;
+
+        public PageImage(int number) {
+            this.number = number;
+        }
+    }
+
+    private static byte[] composePage(Renderer job, PageImage page,
+                                      int w, int h, float scale,
+                                      float pageHeight, String format)
+            throws IOException {
+        BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = img.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, w, h);
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                           RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING,
+                           RenderingHints.VALUE_RENDER_QUALITY);
+        for(int i = 0; i < page.badges.size(); i++) {
+            Badge badge = page.badges.get(i);
+            Rectangle2D.Float box = page.boxes.get(i);
+            Dimension d = badge.getPixelDimension();
+            // page points to whole pixels, the image y axis points down
+            int x0 = Math.round(box.x * scale);
+            int x1 = Math.round((box.x + box.width) * scale);
+            int y0 = Math.round((pageHeight - box.y - box.height) * scale);
+            int y1 = Math.round((pageHeight - box.y) * scale);
+            Graphics2D bg = (Graphics2D) g.create();
             try {
-                fileName = badge.number + "-" + 
-                           badge.primaryText + ".jpg";
-                File outFile = new File(jpgOutputDir + "/" + fileName);
-                if(p != null) {
-                    if(p.cancel) {
-                        p.complete();
-                        Log.d(0, "CANCELLED");
-                        return;
-                    }
-                    p.text = "Saving " + outFile.getName();
-                    p.percent = (float)badgeNum / badges.size();
-                    p.update();
-                }
-                badgeNum++;
-                Log.d(0, "    Saving to " + outFile.getAbsolutePath());
-                if(outFile.exists() && !outFile.canWrite()) {
-                    Log.err("Unable to write to: " +
-                                       outFile.getAbsolutePath());
-                } else {
-                    outFile.createNewFile();
-                    // need to convert to TYPE_INT_RGB to remove alpha channel
-                    ImageIO.write(ImageTools.discardAlphaChannel(r.render(badge)),
-                                  "jpg", outFile);
-                }
+                bg.clipRect(x0, y0, x1 - x0, y1 - y0);
+                bg.translate(x0, y0);
+                bg.scale((double)(x1 - x0) / d.width,
+                         (double)(y1 - y0) / d.height);
+                job.renderTo(bg, badge);
             } catch(Exception e) {
-                Log.err("Failed to write " + fileName + ", reason: " + e);
+                Log.err("Failed to render " + badge.number + "-" +
+                        badge.primaryText + ", reason: " + e);
+            } finally {
+                bg.dispose();
             }
         }
-        
+        g.dispose();
+        return format.equals("png") ? PNGEncoder.encode(img) :
+                                      JPEGEncoder.encode(img);
+    }
+
+    private static boolean writePage(Progress p, Deque<PageImage> pending,
+                                     String pageOutputDir, String ext,
+                                     int placed, int total) {
+        PageImage page = pending.poll();
+        if(p != null && p.cancel) {
+            page.data.cancel(true);
+            for(PageImage other : pending) {
+                other.data.cancel(true);
+            }
+            return false;
+        }
+        try {
+            String fileName = String.format("page-%03d.%s", page.number, ext);
+            writeOutput(p, new File(pageOutputDir + "/" + fileName),
+                        page.data.get());
+        } catch(ExecutionException e) {
+            Log.err("Failed to compose page " + page.number + ", reason: " +
+                    e.getCause());
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
         if(p != null) {
-            p.complete();
+            if(total > 0) {
+                p.percent = (float)placed / total;
+            }
+            p.update();
+        }
+        return true;
+    }
+
+    private static boolean writeOutput(Progress p, File outFile,
+                                       byte[] data) {
+        if(p != null) {
+            p.text = "Saving " + outFile.getName();
+        }
+        Log.d(0, "    Saving to " + outFile.getAbsolutePath());
+        if(outFile.exists() && !outFile.canWrite()) {
+            Log.err("Unable to write to: " +
+                               outFile.getAbsolutePath());
+            return false;
+        }
+        try {
+            Files.write(outFile.toPath(), data);
+            return true;
+        } catch(IOException ioe) {
+            Log.err("Failed to write " + outFile.getName() +
+                               ", reason: " + ioe);
+            return false;
         }
     }
     
@@ -308,7 +864,8 @@ public class IO {
                 fields.add(String.valueOf(badge.number));
                 fields.add(badge.primaryText);
                 fields.add(badge.secondaryText);
-                if(badge.background != null) {
+                BufferedImage background = badge.getBackground();
+                if(background != null) {
                     fields.add(name + ".png");
                 } else {
                     fields.add("");
@@ -331,8 +888,8 @@ public class IO {
                     fields.add(d);
                 }
                 printer.printRecord(fields);
-                if(badge.background != null) {
-                    ImageIO.write(badge.background, "png",
+                if(background != null) {
+                    ImageIO.write(background, "png",
                                   new File(imageParentPath + "/" + name + ".png"));
                 }
             }
@@ -387,10 +944,8 @@ public class IO {
     {
         List<Badge> badges = new ArrayList<>();
         try {
-            File imageFilePath = null;
             CSVParser parser = CSVParser.parse(csvString, CSVFormat.DEFAULT);
             List<CSVRecord> records = parser.getRecords();
-            BufferedImage background;
             int recordNum = 1;
             for(CSVRecord record : records) {
                 if(p != null) {
@@ -405,50 +960,9 @@ public class IO {
                     p.update();
                 }
                 try {
-                    Log.d(1, record.toString());
-                    background = null;
-                    if(record.size() < 7) {
-                        throw new IOException("invalid number of columns (" +
-                                              record.size() + ")");
-                    }
-                    if(!record.get(3).trim().equals("")) {
-                        try {
-                            imageFilePath = new File(imageParentPath
-                                    + "/" + record.get(3).trim());
-                            
-                            background = ImageTools.get(imageFilePath);
-                        } catch(IOException ioe) {
-                            Log.err("Failed to load image " + 
-                                    "(line " + recordNum + "): " +
-                                    imageFilePath.getAbsolutePath());
-                        }
-                    }
-                    Badge img = new Badge(
-                            Integer.parseInt(record.get(0)), // number
-                            record.get(1),                   // primary text
-                            record.get(2),                   // secondary text
-                            background,
-                            record.get(4),                   // background color
-                            record.get(5),                   // text background color
-                            record.get(6)                    // text color
-                    );
-                    if(record.size() > 7) {
-                        switch(record.get(7).toLowerCase()) {
-                            case "fit_height":
-                                img.setBackgroundFit(Badge.BACKGROUND_FIT_HEIGHT);
-                                break;
-                            default:
-                            case "fit_width":
-                                img.setBackgroundFit(Badge.BACKGROUND_FIT_WIDTH);
-                        }
-                        for(int i = 8; i < record.size(); i++) {
-                            img.addExtraData(record.get(i));
-                        }
-                    }
-                    img.setWidth(badgeWidth);
-                    img.setProportion(badgeHeight / badgeWidth);
-                    img.setResolution(resolution);
-                    badges.add(img);
+                    badges.add(parseRecord(record, recordNum, imageParentPath,
+                                           badgeWidth, badgeHeight,
+                                           resolution));
                 } catch(Exception e) {
                     Log.err("Failed to parse record " + recordNum + ": " + e);
                     if(p != null) {
@@ -468,6 +982,283 @@ public class IO {
         return badges;
     }
     
+    private static Badge parseRecord(CSVRecord record, int recordNum,
+                                     String imageParentPath,
+                                     float badgeWidth, float badgeHeight,
+                                     int resolution) throws Exception {
+        Log.d(1, record.toString());
+        List<String> values = new ArrayList<>(record.size());
+        for(int i = 0; i < record.size(); i++) {
+            values.add(record.get(i));
+        }
+        return parseRow(values, recordNum, imageParentPath, badgeWidth,
+                        badgeHeight, resolution);
+    }
+    
+    /**
+     * Make a badge from the columns of an input file row, see the usage
+     * text for the column layout
+     *
+     * @param imageParentPath directory background paths are relative to
+     * @throws Exception if the row is malformed
+     */
+    public static Badge parseRow(List<String> record, int recordNum,
+                                 String imageParentPath,
+                                 float badgeWidth, float badgeHeight,
+                                 int resolution) throws Exception {
+        ImageRef background = null;
+        if(record.size() < 7) {
+            throw new IOException("invalid number of columns (" +
+                                  record.size() + ")");
+        }
+        if(!record.get(3).trim().equals("")) {
+            File imageFilePath = new File(imageParentPath
+                    + "/" + record.get(3).trim());
+            // decoded when a renderer first needs it
+            if(imageFilePath.isFile()) {
+                background = ImageRef.of(imageFilePath);
+            } else {
+                Log.err("Failed to load image " + 
+                        "(line " + recordNum + "): " +
+                        imageFilePath.getAbsolutePath());
+            }
+        }
+        Badge img = new Badge(
+                Integer.parseInt(record.get(0)), // number
+                record.get(1),                   // primary text
+                record.get(2),                   // secondary text
+                background,
+                record.get(4),                   // background color
+                record.get(5),                   // text background color
+                record.get(6)                    // text color
+        );
+        if(record.size() > 7) {
+            switch(record.get(7).toLowerCase()) {
+                case "fit_height":
+                    img.setBackgroundFit(Badge.BACKGROUND_FIT_HEIGHT);
+                    break;
+                default:
+                case "fit_width":
+                    img.setBackgroundFit(Badge.BACKGROUND_FIT_WIDTH);
+            }
+            for(int i = 8; i < record.size(); i++) {
+                img.addExtraData(record.get(i));
+            }
+        }
+        img.setWidth(badgeWidth);
+        img.setProportion(badgeHeight / badgeWidth);
+        img.setResolution(resolution);
+        return img;
+    }
+    
+    /**
+     * Open a CSV file for reading one record at a time, so large inputs can
+     * be rendered without holding every badge in memory
+     */
+    public static BadgeStream streamCSV(String csvFile,
+                                        float badgeWidth,
+                                        float badgeHeight,
+                                        int resolution) throws IOException {
+        File parentPath = (new File(csvFile)).getParentFile();
+        String imageParentPath = parentPath == null ? "." :
+                                 parentPath.getAbsolutePath();
+        Log.d(0, "    Streaming " + csvFile);
+        return new BadgeStream(new CSVParser(
+                Files.newBufferedReader(Paths.get(csvFile),
+                                        StandardCharsets.UTF_8),
+                CSVFormat.DEFAULT),
+                imageParentPath, badgeWidth, badgeHeight, resolution);
+    }
+    
+    /**
+     * Badges parsed lazily from a CSV file. Like parseCSV, the stream ends at
+     * the first invalid record
+     */
+    public static class BadgeStream implements Iterator<Badge>, Closeable {
+        private final CSVParser parser;
+        private final Iterator<CSVRecord> records;
+        private final String imageParentPath;
+        private final float badgeWidth;
+        private final float badgeHeight;
+        private final int resolution;
+        private Badge next = null;
+        private int recordNum = 1;
+        private int count = 0;
+        
+        private BadgeStream(CSVParser parser, String imageParentPath,
+                            float badgeWidth, float badgeHeight,
+                            int resolution) {
+            this.parser = parser;
+            this.records = parser.iterator();
+            this.imageParentPath = imageParentPath;
+            this.badgeWidth = badgeWidth;
+            this.badgeHeight = badgeHeight;
+            this.resolution = resolution;
+        }
+        
+        @Override
+        public boolean hasNext() {
+            if(next != null) {
+                return true;
+            }
+            try {
+                if(!records.hasNext()) {
+                    close();
+                    return false;
+                }
+                next = parseRecord(records.next(), recordNum, imageParentPath,
+                                   badgeWidth, badgeHeight, resolution);
+                recordNum++;
+                count++;
+                return true;
+            } catch(Exception e) {
+                Log.err("Failed to parse record " + recordNum + ": " + e);
+                close();
+                return false;
+            }
+        }
+        
+        @Override
+        public Badge next() {
+            if(!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Badge badge = next;
+            next = null;
+            return badge;
+        }
+        
+        /**
+         * @return number of badges read so far
+         */
+        public int getCount() {
+            return count;
+        }
+        
+        @Override
+        public void close() {
+            try {
+                parser.close();
+            } catch(IOException ioe) {
+                Log.err("Failed to close input: " + ioe);
+            }
+        }
+    }
+    
+    /**
+     * Badges of a CSV file that is read again whenever it changes. Rows that
+     * are identical to a row of the previous read keep their badge, so only
+     * edited rows are parsed again
+     */
+    public static class BadgeTable {
+        private final String csvFile;
+        private final String imageParentPath;
+        private final float badgeWidth;
+        private final float badgeHeight;
+        private final int resolution;
+        private Map<List<String>, Badge> rows = new HashMap<>();
+        private Set<File> images = new HashSet<>();
+        private int parsed = 0;
+        
+        public BadgeTable(String csvFile, float badgeWidth, float badgeHeight,
+                          int resolution) {
+            File parentPath = (new File(csvFile)).getParentFile();
+            this.csvFile = csvFile;
+            this.imageParentPath = parentPath == null ? "." :
+                                   parentPath.getAbsolutePath();
+            this.badgeWidth = badgeWidth;
+            this.badgeHeight = badgeHeight;
+            this.resolution = resolution;
+        }
+        
+        /**
+         * Read the file. Like parseCSV, the badges end at the first invalid
+         * record
+         *
+         * @return the badges, or null if the file could not be read
+         */
+        public List<Badge> read() {
+            List<Badge> badges = new ArrayList<>();
+            Map<List<String>, Badge> read = new HashMap<>();
+            Set<File> files = new HashSet<>();
+            parsed = 0;
+            Log.d(0, "    Parsing " + csvFile);
+            try(CSVParser parser = new CSVParser(
+                    Files.newBufferedReader(Paths.get(csvFile),
+                                            StandardCharsets.UTF_8),
+                    CSVFormat.DEFAULT)) {
+                int recordNum = 1;
+                for(CSVRecord record : parser) {
+                    List<String> values = new ArrayList<>(record.size());
+                    for(int i = 0; i < record.size(); i++) {
+                        values.add(record.get(i));
+                    }
+                    // each badge is reused once, repeated rows get their own
+                    Badge badge = rows.remove(values);
+                    if(badge == null) {
+                        try {
+                            badge = parseRow(values, recordNum,
+                                             imageParentPath, badgeWidth,
+                                             badgeHeight, resolution);
+                            parsed++;
+                        } catch(Exception e) {
+                            Log.err("Failed to parse record " + recordNum +
+                                    ": " + e);
+                            break;
+                        }
+                    }
+                    File image = getImageFile(values);
+                    if(image != null) {
+                        files.add(image);
+                    }
+                    read.putIfAbsent(values, badge);
+                    badges.add(badge);
+                    recordNum++;
+                }
+            } catch(IOException ioe) {
+                Log.err("Failed to parse " + csvFile + ", reason: " + ioe);
+                return null;
+            }
+            rows = read;
+            images = files;
+            Log.d(1, "Entries read: "  + badges.size());
+            return badges;
+        }
+        
+        /**
+         * @return number of rows parsed by the last read, rows that did not
+         *         change since the read before it are not counted
+         */
+        public int getParsedCount() {
+            return parsed;
+        }
+        
+        /**
+         * @return background images named by the rows of the last read,
+         *         including ones that do not exist, as normalized paths
+         */
+        public Set<File> getImageFiles() {
+            return images;
+        }
+        
+        /**
+         * Parse the rows that name any of the images again on the next
+         * read, e.g. because an image that was missing has been created
+         */
+        public void invalidate(Collection<File> changed) {
+            rows.keySet().removeIf((values) ->
+                    changed.contains(getImageFile(values)));
+        }
+        
+        private File getImageFile(List<String> values) {
+            if(values.size() < 4 || values.get(3).trim().equals("")) {
+                return null;
+            }
+            return InputWatcher.normalize(
+                    new File(imageParentPath + "/" + values.get(3).trim()));
+        }
+    }
+    
     public static void saveRendererSettings(Renderer r, float[] sizes, 
                                             String csvFile) {
         FileWriter w = null;
@@ -0,0 +1,94 @@
+/*
+    Copyright 2017 Wira Mulia
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+package org.osumercury.badgemaker;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Reference to an image that is either already in memory or decoded from a
+ * file when it is first needed. File images go through the ImageTools cache
+ * so only recently used ones stay in memory
+ *
+ * @author wira
+ */
+public class ImageRef {
+    private final File file;
+    private final BufferedImage image;
+
+    private ImageRef(File file, BufferedImage image) {
+        this.file = file;
+        this.image = image;
+    }
+
+    public static ImageRef of(File file) {
+        return new ImageRef(file.getAbsoluteFile(), null);
+    }
+
+    /**
+     * @return a reference to img, or null if img is null
+     */
+    public static ImageRef of(BufferedImage img) {
+        return img == null ? null : new ImageRef(null, img);
+    }
+
+    /**
+     * @return the file the image is loaded from, or null for in-memory images
+     */
+    public File getFile() {
+        return file;
+    }
+
+    public BufferedImage get() throws IOException {
+        return get(null);
+    }
+
+    /**
+     * Get the image, file images are decoded at a reduced resolution that
+     * still covers box, see {@link ImageTools#get(File, Dimension)}
+     */
+    public BufferedImage get(Dimension box) throws IOException {
+        if(image != null) {
+            return image;
+        }
+        BufferedImage img = ImageTools.get(file, box);
+        if(img == null) {
+            throw new IOException("unsupported image format");
+        }
+        return img;
+    }
+
+    /**
+     * Decode the image into the cache ahead of use, errors are left for the
+     * caller of get to report
+     */
+    public void prefetch(Dimension box) {
+        if(image == null) {
+            try {
+                ImageTools.get(file, box);
+            } catch(IOException ioe) {
+                Log.d(1, "      prefetch failed " + file);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return file != null ? file.getName() : image.toString();
+    }
+}
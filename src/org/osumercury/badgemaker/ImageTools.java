@@ -16,17 +16,32 @@
 package org.osumercury.badgemaker;
 
 import java.awt.Color;
+import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Objects;
+import java.util.WeakHashMap;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import org.imgscalr.Scalr;
 
 /**
@@ -34,29 +49,283 @@ import org.imgscalr.Scalr;
  * @author wira
  */
 public class ImageTools {
-    private static Map<String, BufferedImage> cache;
+    // decoded images by path, least recently used first
+    private static final LinkedHashMap<String, CacheEntry> cache =
+            new LinkedHashMap<>(64, 0.75f, true);
+    private static long cacheBudget = 512L * 1024 * 1024;
+    private static long cacheBytes = 0;
+    private static final Map<String, Dimension> imageSizes = new HashMap<>();
+    // file each decoded image came from
+    private static final Map<BufferedImage, File> sources =
+            new WeakHashMap<>();
+    
+    // scaled text sprites, least recently used first
+    private static final LinkedHashMap<TextKey, BufferedImage> textCache =
+            new LinkedHashMap<>(256, 0.75f, true);
+    private static final long TEXT_CACHE_BUDGET = 64L * 1024 * 1024;
+    private static long textCacheBytes = 0;
+    // hints that change text metrics, part of the text cache key
+    private static final RenderingHints.Key[] METRICS_HINTS = {
+        RenderingHints.KEY_ANTIALIASING,
+        RenderingHints.KEY_TEXT_ANTIALIASING,
+        RenderingHints.KEY_FRACTIONALMETRICS
+    };
+    
+    // scaled variants of source images, least recently used first
+    private static final LinkedHashMap<ScaleKey, BufferedImage> scaleCache =
+            new LinkedHashMap<>(64, 0.75f, true);
+    private static final long SCALE_CACHE_BUDGET = 256L * 1024 * 1024;
+    private static long scaleCacheBytes = 0;
+    private static final ReferenceQueue<BufferedImage> collectedSources =
+            new ReferenceQueue<>();
     
     public static BufferedImage get(File f) throws IOException {
         return get(f.getAbsolutePath());
     }
     
+    /**
+     * Decode the image at path, or return the cached copy. Each path is
+     * decoded once even when several threads ask for it at the same time,
+     * and entries are reloaded when the file size or modification time
+     * changes. Images are shared so the returned image must not be modified
+     */
     public static BufferedImage get(String path) throws IOException {
-        if(cache == null) {
-            cache = new HashMap<>();
+        return load(path, new File(path), 1);
+    }
+    
+    /**
+     * Decode the image at the lowest resolution that still covers the box,
+     * or reuse a cached decode of the file that covers it. A box dimension
+     * of zero is not constrained, a null box decodes at full resolution
+     */
+    public static BufferedImage get(File f, Dimension box) throws IOException {
+        String path = f.getAbsolutePath();
+        int subsampling = box == null ? 1 : subsampling(f, box);
+        // e.g. rows with other fit modes may have decoded the file finer
+        synchronized(cache) {
+            int s = subsampling;
+            while(s > 1 && !cache.containsKey(cacheKey(path, s))) {
+                s--;
+            }
+            if(cache.containsKey(cacheKey(path, s))) {
+                subsampling = s;
+            }
         }
-        if(!cache.containsKey(path)) {
-            Log.d(0, "      caching " + path);
-            BufferedImage img = ImageIO.read(new File(path));
-            cache.put(path, img);
-            return img;
-        } else {
+        return load(cacheKey(path, subsampling), f, subsampling);
+    }
+    
+    private static String cacheKey(String path, int subsampling) {
+        return subsampling <= 1 ? path : path + "#" + subsampling;
+    }
+    
+    // largest factor whose decode, ceil(size / factor), still covers box
+    private static int subsampling(File f, Dimension box) throws IOException {
+        Dimension src = getImageSize(f);
+        int s = Integer.MAX_VALUE;
+        if(box.width > 0) {
+            s = Math.min(s, src.width / box.width);
+        }
+        if(box.height > 0) {
+            s = Math.min(s, src.height / box.height);
+        }
+        return s == Integer.MAX_VALUE ? 1 : Math.max(1, s);
+    }
+    
+    /**
+     * Pixel size of the image file, read from its header
+     */
+    public static Dimension getImageSize(File f) throws IOException {
+        String key = f.getAbsolutePath() + ":" + f.length() + ":" +
+                     f.lastModified();
+        synchronized(imageSizes) {
+            Dimension d = imageSizes.get(key);
+            if(d != null) {
+                return d;
+            }
+        }
+        Dimension d = null;
+        try(ImageInputStream in = ImageIO.createImageInputStream(f)) {
+            Iterator<ImageReader> readers = in == null ? null :
+                                            ImageIO.getImageReaders(in);
+            if(readers != null && readers.hasNext()) {
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(in, true, true);
+                    d = new Dimension(reader.getWidth(0), reader.getHeight(0));
+                } finally {
+                    reader.dispose();
+                }
+            }
+        }
+        if(d == null) {
+            throw new IOException("unsupported image format: " + f);
+        }
+        synchronized(imageSizes) {
+            imageSizes.put(key, d);
+        }
+        return d;
+    }
+    
+    private static BufferedImage read(File f, int subsampling)
+            throws IOException {
+        if(subsampling <= 1) {
+            return ImageIO.read(f);
+        }
+        try(ImageInputStream in = ImageIO.createImageInputStream(f)) {
+            Iterator<ImageReader> readers = in == null ? null :
+                                            ImageIO.getImageReaders(in);
+            if(readers == null || !readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+    
+    // path is the cache key, which includes the subsampling factor
+    private static BufferedImage load(String path, File f, int subsampling)
+            throws IOException {
+        long modified = f.lastModified();
+        long length = f.length();
+        CacheEntry e;
+        boolean load = false;
+        synchronized(cache) {
+            e = cache.get(path);
+            if(e != null && (e.modified != modified || e.length != length)) {
+                Log.d(0, "      stale " + path);
+                remove(path);
+                e = null;
+            }
+            if(e == null) {
+                e = new CacheEntry(modified, length);
+                cache.put(path, e);
+                load = true;
+            }
+        }
+        if(!load) {
             Log.d(0, "      hit " + path);
-            return cache.get(path);
+            return e.get();
+        }
+        Log.d(0, "      caching " + path);
+        BufferedImage img;
+        try {
+            img = read(f, subsampling);
+        } catch(IOException | RuntimeException ex) {
+            synchronized(cache) {
+                if(cache.get(path) == e) {
+                    cache.remove(path);
+                }
+            }
+            e.fail(ex);
+            throw ex;
+        }
+        synchronized(cache) {
+            // recorded before threads waiting for the entry see the image
+            if(img != null) {
+                sources.put(img, f.getAbsoluteFile());
+            }
+        }
+        e.complete(img);
+        synchronized(cache) {
+            if(cache.get(path) == e) {
+                e.bytes = img == null ? 0 : imageBytes(img);
+                cacheBytes += e.bytes;
+                Iterator<Map.Entry<String, CacheEntry>> it =
+                        cache.entrySet().iterator();
+                while(cacheBytes > cacheBudget && it.hasNext()) {
+                    CacheEntry old = it.next().getValue();
+                    // keep the entry we just loaded and ones still loading
+                    if(old != e && old.done) {
+                        cacheBytes -= old.bytes;
+                        it.remove();
+                    }
+                }
+            }
+        }
+        return img;
+    }
+    
+    /**
+     * @return the file img was decoded from by get, or null if it was not
+     *         decoded here, e.g. a scaled copy
+     */
+    public static File getSource(BufferedImage img) {
+        synchronized(cache) {
+            return sources.get(img);
         }
     }
     
     public static void invalidate(String path) {
-        cache.remove(path);
+        synchronized(cache) {
+            remove(path);
+        }
+    }
+    
+    public static void setCacheBudget(long bytes) {
+        synchronized(cache) {
+            cacheBudget = bytes;
+        }
+    }
+    
+    public static long getCacheBudget() {
+        synchronized(cache) {
+            return cacheBudget;
+        }
+    }
+    
+    private static void remove(String path) {
+        CacheEntry e = cache.remove(path);
+        if(e != null) {
+            cacheBytes -= e.bytes;
+        }
+    }
+    
+    private static class CacheEntry {
+        private final long modified;
+        private final long length;
+        private long bytes = 0;
+        private volatile boolean done = false;
+        private BufferedImage img;
+        private Exception error;
+        
+        public CacheEntry(long modified, long length) {
+            this.modified = modified;
+            this.length = length;
+        }
+        
+        public synchronized void complete(BufferedImage img) {
+            this.img = img;
+            done = true;
+            notifyAll();
+        }
+        
+        public synchronized void fail(Exception error) {
+            this.error = error;
+            done = true;
+            notifyAll();
+        }
+        
+        public synchronized BufferedImage get() throws IOException {
+            while(!done) {
+                try {
+                    wait();
+                } catch(InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while loading image");
+                }
+            }
+            if(error != null) {
+                throw new IOException(error.getMessage(), error);
+            }
+            return img;
+        }
     }
     
     public static BufferedImage scale(BufferedImage src, int width, int height) {
@@ -69,6 +338,113 @@ public class ImageTools {
         return result;
     }
     
+    /**
+     * Scaled copy of src, memoized by source identity, size and alpha
+     * multiplier. Results are shared between callers so the returned image
+     * must not be modified
+     */
+    public static BufferedImage getScaled(BufferedImage src,
+                                          int width, int height) {
+        return getScaled(src, width, height, 100);
+    }
+    
+    /**
+     * Scaled copy of src with its alpha channel multiplied by
+     * alphaMultiplier percent, see {@link #setAlpha}
+     */
+    public static BufferedImage getScaled(BufferedImage src, int width,
+                                          int height, int alphaMultiplier) {
+        width = width == 0 ? 1 : width;
+        height = height == 0 ? 1 : height;
+        ScaleKey key = new ScaleKey(src, width, height, alphaMultiplier);
+        synchronized(scaleCache) {
+            BufferedImage scaled = scaleCache.get(key);
+            if(scaled != null) {
+                return scaled;
+            }
+        }
+        BufferedImage scaled = scale(src, width, height);
+        if(alphaMultiplier != 100) {
+            // opaque images get an alpha channel so the multiplier applies
+            if(scaled == src ||
+               scaled.getType() != BufferedImage.TYPE_INT_ARGB) {
+                scaled = copy(scaled);
+            }
+            setAlpha(scaled, alphaMultiplier);
+        }
+        synchronized(scaleCache) {
+            // drop variants of collected sources
+            Reference<? extends BufferedImage> ref;
+            while((ref = collectedSources.poll()) != null) {
+                BufferedImage old = scaleCache.remove(((SourceRef) ref).key);
+                if(old != null) {
+                    scaleCacheBytes -= imageBytes(old);
+                }
+            }
+            if(scaleCache.put(key, scaled) == null) {
+                scaleCacheBytes += imageBytes(scaled);
+            }
+            Iterator<BufferedImage> it = scaleCache.values().iterator();
+            while(scaleCacheBytes > SCALE_CACHE_BUDGET && it.hasNext()) {
+                scaleCacheBytes -= imageBytes(it.next());
+                it.remove();
+            }
+        }
+        return scaled;
+    }
+    
+    private static BufferedImage copy(BufferedImage img) {
+        BufferedImage newImg = new BufferedImage(img.getWidth(), img.getHeight(),
+                                                 BufferedImage.TYPE_INT_ARGB);
+        Graphics g = newImg.getGraphics();
+        g.drawImage(img, 0, 0, null);
+        g.dispose();
+        return newImg;
+    }
+    
+    private static class ScaleKey {
+        private final SourceRef src;
+        private final int srcHash;
+        private final int width;
+        private final int height;
+        private final int alpha;
+        
+        public ScaleKey(BufferedImage src, int width, int height, int alpha) {
+            this.src = new SourceRef(src, this);
+            this.srcHash = System.identityHashCode(src);
+            this.width = width;
+            this.height = height;
+            this.alpha = alpha;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof ScaleKey)) {
+                return false;
+            }
+            ScaleKey k = (ScaleKey) o;
+            BufferedImage img = src.get();
+            return k.srcHash == srcHash && k.width == width &&
+                   k.height == height && k.alpha == alpha &&
+                   img != null && img == k.src.get();
+        }
+        
+        @Override
+        public int hashCode() {
+            return Objects.hash(srcHash, width, height, alpha);
+        }
+    }
+    
+    // queued when the source is collected, so its variants can be removed
+    private static class SourceRef extends WeakReference<BufferedImage> {
+        private final ScaleKey key;
+        
+        public SourceRef(BufferedImage src, ScaleKey key) {
+            super(src, collectedSources);
+            this.key = key;
+        }
+    }
+    
     public static BufferedImage fastScale(BufferedImage src,
                                           int width, int height) {
         width = width == 0 ? 1 : width;
@@ -114,14 +490,108 @@ public class ImageTools {
         g.dispose();
         return newImg;
     }
+
+    /**
+     * @return true if no pixel of img is transparent
+     */
+    public static boolean isOpaque(BufferedImage img) {
+        if(!img.getColorModel().hasAlpha()) {
+            return true;
+        }
+        int w = img.getWidth();
+        int h = img.getHeight();
+        WritableRaster raster = img.getRaster();
+        if(img.getType() == BufferedImage.TYPE_INT_ARGB &&
+           raster.getDataBuffer() instanceof DataBufferInt) {
+            // read the packed pixels directly, getRGB is much slower
+            int[] px = ((DataBufferInt) raster.getDataBuffer()).getData();
+            int stride = ((SinglePixelPackedSampleModel)
+                          raster.getSampleModel()).getScanlineStride();
+            int offset = raster.getDataBuffer().getOffset() -
+                         raster.getSampleModelTranslateX() -
+                         raster.getSampleModelTranslateY() * stride;
+            for(int y = 0; y < h; y++) {
+                int i = offset + y * stride;
+                for(int x = 0; x < w; x++) {
+                    if((px[i + x] >>> 24) != 0xff) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        int[] row = new int[w];
+        for(int y = 0; y < h; y++) {
+            img.getRGB(0, y, w, 1, row, 0, w);
+            for(int p : row) {
+                if((p >>> 24) != 0xff) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
     
+    /**
+     * Rasterize a string and scale it to the given height, or to widthLimit
+     * if the scaled string would be wider than that. Results are cached and
+     * shared between callers so the returned image must not be modified
+     */
     public static BufferedImage drawString(Font f, String str, Color color,
                                            int height, int widthLimit) {
+        return drawString(f, str, color, height, widthLimit, null);
+    }
+    
+    /**
+     * Rasterize a string measured with the text hints of metrics, the
+     * graphics it is drawn on, or without hints if metrics is null
+     */
+    public static BufferedImage drawString(Font f, String str, Color color,
+                                           int height, int widthLimit,
+                                           Graphics2D metrics) {
+        RenderingHints hints = new RenderingHints(null);
+        if(metrics != null) {
+            for(RenderingHints.Key k : METRICS_HINTS) {
+                Object v = metrics.getRenderingHint(k);
+                if(v != null) {
+                    hints.put(k, v);
+                }
+            }
+        }
+        TextKey key = new TextKey(f, str, color, height, widthLimit, hints);
+        synchronized(textCache) {
+            BufferedImage sprite = textCache.get(key);
+            if(sprite != null) {
+                return sprite;
+            }
+        }
+        BufferedImage sprite = rasterizeString(f, str, color, height,
+                                               widthLimit, hints);
+        synchronized(textCache) {
+            if(textCache.put(key, sprite) == null) {
+                textCacheBytes += imageBytes(sprite);
+            }
+            Iterator<BufferedImage> it = textCache.values().iterator();
+            while(textCacheBytes > TEXT_CACHE_BUDGET && it.hasNext()) {
+                textCacheBytes -= imageBytes(it.next());
+                it.remove();
+            }
+        }
+        return sprite;
+    }
+    
+    private static BufferedImage rasterizeString(Font f, String str,
+                                                 Color color, int height,
+                                                 int widthLimit,
+                                                 RenderingHints hints) {
         BufferedImage dummy = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
         Graphics2D g = dummy.createGraphics();
+        g.addRenderingHints(hints);
         g.setFont(f);
         FontMetrics fm = g.getFontMetrics();
-        BufferedImage unscaled = new BufferedImage(fm.stringWidth(str), 
+        int unscaledWidth = fm.stringWidth(str);
+        BufferedImage unscaled = new BufferedImage(
+                unscaledWidth == 0 ? 1 : unscaledWidth, 
                 fm.getHeight(), BufferedImage.TYPE_INT_ARGB);
         Graphics2D gg = unscaled.createGraphics();
         gg.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
@@ -139,6 +609,61 @@ public class ImageTools {
         return ImageTools.scale(unscaled, width, height);
     }
     
+    private static long imageBytes(BufferedImage img) {
+        DataBuffer db = img.getRaster().getDataBuffer();
+        return (long) db.getSize() * db.getNumBanks() *
+               DataBuffer.getDataTypeSize(db.getDataType()) / 8;
+    }
+    
+    private static class TextKey {
+        private final String font;
+        private final int style;
+        private final int size;
+        private final String str;
+        private final int rgba;
+        private final int height;
+        private final int widthLimit;
+        private final RenderingHints hints;
+        
+        public TextKey(Font f, String str, Color color, int height,
+                       int widthLimit, RenderingHints hints) {
+            this.font = f.getName();
+            this.style = f.getStyle();
+            this.size = f.getSize();
+            this.str = str;
+            this.rgba = color.getRGB();
+            this.height = height;
+            this.widthLimit = widthLimit;
+            this.hints = hints;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof TextKey)) {
+                return false;
+            }
+            TextKey k = (TextKey) o;
+            return k.style == style && k.size == size && k.rgba == rgba &&
+                   k.height == height && k.widthLimit == widthLimit &&
+                   k.font.equals(font) && k.str.equals(str) &&
+                   k.hints.equals(hints);
+        }
+        
+        @Override
+        public int hashCode() {
+            return Objects.hash(font, style, size, str, rgba, height,
+                                widthLimit, hints);
+        }
+    }
+    
+    /**
+     * Alpha multiplier limited to 0 to 100 percent, for baked and blended
+     * alpha alike
+     */
+    public static int clampAlpha(int alphaMultiplier) {
+        return Math.max(0, Math.min(100, alphaMultiplier));
+    }
+    
     public static void setAlpha(BufferedImage img, int alphaMultiplier) {
         if(img.getType() != BufferedImage.TYPE_INT_ARGB) {
             Log.d(0, "ImageTools.setAlpha only supports TYPE_INT_ARGB");
@@ -150,8 +675,7 @@ public class ImageTools {
             for(y = 0; y < img.getHeight(); y++) {
                 rgb = img.getRGB(x, y);
                 alpha = rgb >> 24 & 0xff;
-                alpha = (int)(alphaMultiplier/100.0 * alpha);
-                alpha = alpha > 255 ? 255 : alpha;
+                alpha = (int)(clampAlpha(alphaMultiplier)/100.0 * alpha);
                 rgb = (int)((rgb & 0x00ffffffL) | (alpha << 24));
                 img.setRGB(x, y, rgb);
             }
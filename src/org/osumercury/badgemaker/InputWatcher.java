@@ -0,0 +1,171 @@
+/*
+    Copyright 2017 Wira Mulia
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+package org.osumercury.badgemaker;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits for changes to a set of files through a WatchService on their
+ * directories. Files do not have to exist, creating one counts as a change
+ *
+ * @author wira
+ */
+public class InputWatcher implements Closeable {
+    // editors save in several steps, wait for them to finish
+    private static final long SETTLE_MS = 200;
+
+    private final WatchService service;
+    private final Map<Path, WatchKey> dirs = new HashMap<>();
+    private final Set<Path> files = new HashSet<>();
+    private final Map<Path, String> stamps = new HashMap<>();
+
+    public InputWatcher() throws IOException {
+        service = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * Watch exactly these files from now on
+     */
+    public void watch(Collection<File> watched) throws IOException {
+        Set<Path> next = new HashSet<>();
+        for(File f : watched) {
+            next.add(normalize(f).toPath());
+        }
+        Set<Path> nextDirs = new HashSet<>();
+        for(Path path : next) {
+            Path dir = path.getParent();
+            if(dir != null && Files.isDirectory(dir) && nextDirs.add(dir) &&
+               !dirs.containsKey(dir)) {
+                dirs.put(dir, dir.register(service,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY,
+                        StandardWatchEventKinds.ENTRY_DELETE));
+            }
+        }
+        Iterator<Map.Entry<Path, WatchKey>> it = dirs.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<Path, WatchKey> e = it.next();
+            if(!nextDirs.contains(e.getKey())) {
+                e.getValue().cancel();
+                it.remove();
+            }
+        }
+        stamps.keySet().retainAll(next);
+        for(Path path : next) {
+            if(!stamps.containsKey(path)) {
+                stamps.put(path, stamp(path));
+            }
+        }
+        files.clear();
+        files.addAll(next);
+    }
+
+    /**
+     * @return number of files watched
+     */
+    public int size() {
+        return files.size();
+    }
+
+    /**
+     * Block until watched files change and stay unchanged for a moment
+     *
+     * @return the changed files as absolute normalized paths, see
+     *         normalize
+     */
+    public Set<File> await() throws InterruptedException {
+        while(true) {
+            Set<Path> touched = new HashSet<>();
+            WatchKey key = service.take();
+            do {
+                collect(key, touched);
+                key = service.poll(SETTLE_MS, TimeUnit.MILLISECONDS);
+            } while(key != null);
+            // events also fire for writes that leave a file as it was
+            Set<File> changed = new LinkedHashSet<>();
+            for(Path path : touched) {
+                String stamp = stamp(path);
+                if(!stamp.equals(stamps.put(path, stamp))) {
+                    changed.add(path.toFile());
+                }
+            }
+            if(!changed.isEmpty()) {
+                return changed;
+            }
+        }
+    }
+
+    private void collect(WatchKey key, Set<Path> touched) {
+        Path dir = (Path) key.watchable();
+        for(WatchEvent<?> event : key.pollEvents()) {
+            if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // events were lost, check every file
+                touched.addAll(files);
+                continue;
+            }
+            Path path = dir.resolve((Path) event.context());
+            if(files.contains(path)) {
+                touched.add(path);
+            }
+        }
+        key.reset();
+    }
+
+    /**
+     * @return the file as an absolute path without . and .. elements, the
+     *         form changed files are reported in
+     */
+    public static File normalize(File f) {
+        return f.toPath().toAbsolutePath().normalize().toFile();
+    }
+
+    private static String stamp(Path path) {
+        try {
+            BasicFileAttributes attr = Files.readAttributes(path,
+                    BasicFileAttributes.class);
+            return attr.size() + "/" + attr.lastModifiedTime().toMillis();
+        } catch(IOException ioe) {
+            return "missing";
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            service.close();
+        } catch(IOException ioe) {
+            Log.err("Failed to close watch service: " + ioe);
+        }
+    }
+}
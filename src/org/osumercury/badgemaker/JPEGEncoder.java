@@ -0,0 +1,191 @@
+/*
+    Copyright 2017 Wira Mulia
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+package org.osumercury.badgemaker;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOInvalidTreeException;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import org.w3c.dom.NodeList;
+
+/**
+ * JPEG encoder with configurable quality and chroma subsampling. Every
+ * thread keeps its own ImageWriter instead of looking one up per image
+ *
+ * @author wira
+ */
+public class JPEGEncoder {
+    public static final int SUBSAMPLING_444 = 0;
+    public static final int SUBSAMPLING_422 = 1;
+    public static final int SUBSAMPLING_420 = 2;
+
+    private static final String[] SUBSAMPLING_NAMES = { "444", "422", "420" };
+    private static final String NATIVE_FORMAT = "javax_imageio_jpeg_image_1.0";
+    private static final DirectColorModel RGB =
+            new DirectColorModel(24, 0xff0000, 0x00ff00, 0x0000ff);
+
+    private static float quality = 0.75f;
+    private static int subsampling = SUBSAMPLING_420;
+
+    // writers are not thread safe and are reused by the thread that made them
+    private static final ThreadLocal<ImageWriter> writers =
+            ThreadLocal.withInitial(() ->
+                    ImageIO.getImageWritersByFormatName("jpeg").next());
+
+    /**
+     * Set the quality from 0 (smallest) to 1 (best)
+     */
+    public static void setQuality(float quality) {
+        JPEGEncoder.quality = Math.max(0, Math.min(1, quality));
+    }
+
+    public static float getQuality() {
+        return quality;
+    }
+
+    /**
+     * Set how chroma is sampled relative to luma, one of the SUBSAMPLING
+     * constants. 4:4:4 keeps colored text edges sharp at the cost of size
+     */
+    public static void setSubsampling(int subsampling) {
+        if(subsampling < SUBSAMPLING_444 || subsampling > SUBSAMPLING_420) {
+            throw new IllegalArgumentException("invalid subsampling " +
+                                               subsampling);
+        }
+        JPEGEncoder.subsampling = subsampling;
+    }
+
+    public static int getSubsampling() {
+        return subsampling;
+    }
+
+    public static String getSubsamplingName(int subsampling) {
+        return SUBSAMPLING_NAMES[subsampling];
+    }
+
+    /**
+     * @return the subsampling constant for a name such as 420 or 4:2:0, or
+     *         -1 if there is none
+     */
+    public static int parseSubsampling(String name) {
+        name = name.replace(":", "");
+        for(int i = 0; i < SUBSAMPLING_NAMES.length; i++) {
+            if(SUBSAMPLING_NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public static byte[] encode(BufferedImage img) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(img, out);
+        return out.toByteArray();
+    }
+
+    public static void write(BufferedImage img, File f) throws IOException {
+        try(OutputStream out = new BufferedOutputStream(
+                new FileOutputStream(f))) {
+            write(img, out);
+        }
+    }
+
+    /**
+     * Encode img, transparent pixels are composited over black
+     */
+    public static void write(BufferedImage img, OutputStream out)
+            throws IOException {
+        BufferedImage rgb = toRGB(img);
+        ImageWriter writer = writers.get();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality);
+        IIOMetadata meta = writer.getDefaultImageMetadata(
+                new ImageTypeSpecifier(rgb), param);
+        setSubsampling(meta, subsampling);
+        boolean written = false;
+        // closing the image stream flushes it without closing out
+        try(ImageOutputStream ios = new MemoryCacheImageOutputStream(out)) {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(rgb, null, meta), param);
+            writer.setOutput(null);
+            written = true;
+        } finally {
+            if(!written) {
+                // a failed write can leave the writer in a bad state
+                writers.remove();
+                writer.dispose();
+            }
+        }
+    }
+
+    /**
+     * The image without its alpha channel. Opaque int ARGB images are
+     * viewed as RGB without copying their pixels
+     */
+    private static BufferedImage toRGB(BufferedImage img) {
+        if(!img.getColorModel().hasAlpha()) {
+            return img;
+        }
+        WritableRaster raster = img.getRaster();
+        if(img.getType() == BufferedImage.TYPE_INT_ARGB &&
+           raster.getSampleModelTranslateX() == 0 &&
+           raster.getSampleModelTranslateY() == 0 &&
+           ImageTools.isOpaque(img)) {
+            int stride = ((SinglePixelPackedSampleModel)
+                          raster.getSampleModel()).getScanlineStride();
+            WritableRaster view = Raster.createPackedRaster(
+                    raster.getDataBuffer(), img.getWidth(), img.getHeight(),
+                    stride, RGB.getMasks(), null);
+            return new BufferedImage(RGB, view, false, null);
+        }
+        return ImageTools.discardAlphaChannel(img);
+    }
+
+    private static void setSubsampling(IIOMetadata meta, int subsampling)
+            throws IIOInvalidTreeException {
+        IIOMetadataNode tree = (IIOMetadataNode)
+                meta.getAsTree(NATIVE_FORMAT);
+        NodeList specs = tree.getElementsByTagName("componentSpec");
+        for(int i = 0; i < specs.getLength(); i++) {
+            IIOMetadataNode spec = (IIOMetadataNode) specs.item(i);
+            // the first component is luma, chroma is sampled relative to it
+            boolean luma = i == 0 && specs.getLength() > 1;
+            spec.setAttribute("HsamplingFactor",
+                    luma && subsampling != SUBSAMPLING_444 ? "2" : "1");
+            spec.setAttribute("VsamplingFactor",
+                    luma && subsampling == SUBSAMPLING_420 ? "2" : "1");
+        }
+        meta.setFromTree(NATIVE_FORMAT, tree);
+    }
+}
@@ -0,0 +1,226 @@
+/*
+    Copyright 2017 Wira Mulia
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+package org.osumercury.badgemaker;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON parser for badge rows. Objects become maps, arrays become
+ * lists, strings and numbers become strings (numbers keep their literal
+ * text, so 5 stays "5"), true and false become booleans and null is null
+ *
+ * @author wira
+ */
+public class JSONReader {
+    private static final int MAX_DEPTH = 64;
+
+    private final String text;
+    private int pos = 0;
+    private int depth = 0;
+
+    private JSONReader(String text) {
+        this.text = text;
+    }
+
+    /**
+     * Parse a JSON document
+     *
+     * @throws IllegalArgumentException if the text is malformed
+     */
+    public static Object read(String text) {
+        JSONReader reader = new JSONReader(text);
+        Object value = reader.value();
+        reader.skipSpace();
+        if(reader.pos < text.length()) {
+            throw reader.error("unexpected text after the document");
+        }
+        return value;
+    }
+
+    private Object value() {
+        skipSpace();
+        if(pos >= text.length()) {
+            throw error("unexpected end of document");
+        }
+        char c = text.charAt(pos);
+        switch(c) {
+            case '{':
+            case '[':
+                if(++depth > MAX_DEPTH) {
+                    throw error("nested too deeply");
+                }
+                Object nested = c == '{' ? object() : array();
+                depth--;
+                return nested;
+            case '"':
+                return string();
+            case 't':
+                literal("true");
+                return Boolean.TRUE;
+            case 'f':
+                literal("false");
+                return Boolean.FALSE;
+            case 'n':
+                literal("null");
+                return null;
+            default:
+                if(c == '-' || (c >= '0' && c <= '9')) {
+                    return number();
+                }
+                throw error("unexpected '" + c + "'");
+        }
+    }
+
+    private Map<String, Object> object() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        pos++;
+        skipSpace();
+        if(peek() == '}') {
+            pos++;
+            return map;
+        }
+        while(true) {
+            skipSpace();
+            if(peek() != '"') {
+                throw error("expected a member name");
+            }
+            String key = string();
+            skipSpace();
+            expect(':');
+            map.put(key, value());
+            skipSpace();
+            if(peek() == ',') {
+                pos++;
+                continue;
+            }
+            expect('}');
+            return map;
+        }
+    }
+
+    private List<Object> array() {
+        List<Object> list = new ArrayList<>();
+        pos++;
+        skipSpace();
+        if(peek() == ']') {
+            pos++;
+            return list;
+        }
+        while(true) {
+            list.add(value());
+            skipSpace();
+            if(peek() == ',') {
+                pos++;
+                continue;
+            }
+            expect(']');
+            return list;
+        }
+    }
+
+    private String string() {
+        StringBuilder sb = new StringBuilder();
+        pos++;
+        while(pos < text.length()) {
+            char c = text.charAt(pos++);
+            if(c == '"') {
+                return sb.toString();
+            }
+            if(c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            if(pos >= text.length()) {
+                break;
+            }
+            char e = text.charAt(pos++);
+            switch(e) {
+                case '"':
+                case '\\':
+                case '/':
+                    sb.append(e);
+                    break;
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'u':
+                    if(pos + 4 > text.length()) {
+                        throw error("truncated escape");
+                    }
+                    try {
+                        sb.append((char) Integer.parseInt(
+                                text.substring(pos, pos + 4), 16));
+                    } catch(NumberFormatException nfe) {
+                        throw error("invalid escape");
+                    }
+                    pos += 4;
+                    break;
+                default:
+                    throw error("invalid escape '\\" + e + "'");
+            }
+        }
+        throw error("unterminated string");
+    }
+
+    private String number() {
+        int start = pos;
+        while(pos < text.length() &&
+              "+-.eE0123456789".indexOf(text.charAt(pos)) >= 0) {
+            pos++;
+        }
+        String literal = text.substring(start, pos);
+        try {
+            Double.parseDouble(literal);
+        } catch(NumberFormatException nfe) {
+            throw error("invalid number " + literal);
+        }
+        return literal;
+    }
+
+    private void literal(String word) {
+        if(!text.startsWith(word, pos)) {
+            throw error("unexpected text");
+        }
+        pos += word.length();
+    }
+
+    private void expect(char c) {
+        if(peek() != c) {
+            throw error("expected '" + c + "'");
+        }
+        pos++;
+    }
+
+    private char peek() {
+        return pos < text.length() ? text.charAt(pos) : 0;
+    }
+
+    private void skipSpace() {
+        while(pos < text.length() &&
+              Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at offset " + pos);
+    }
+}
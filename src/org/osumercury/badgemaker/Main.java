@@ -19,7 +19,9 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 import org.apache.pdfbox.pdmodel.common.PDRectangle;
 import org.osumercury.badgemaker.gui.GUI;
 import org.osumercury.badgemaker.renderers.*;
@@ -33,7 +35,10 @@ public class Main {
     private static String file;
     private static String pngOutputDir;
     private static String jpgOutputDir;
+    private static String svgOutputDir;
     private static String pdf;
+    private static String pageOutputDir;
+    private static int pageDPI = 300;
     private static String pdfPageSize;
     private static int pdfUnits;
     private static boolean gui = false;
@@ -52,6 +57,11 @@ public class Main {
     private static String cOutName;
     private static String cOutFile;
     private static String[] cOutArgs;
+    private static File cacheDir = null;
+    private static boolean stream = false;
+    private static boolean watch = false;
+    private static int servePort = 0;
+    private static boolean serveLayout = false;
     
     /**
      * @param args the command line arguments
@@ -115,6 +125,89 @@ public class Main {
                         case "-p":
                             preferLosslessOutput = true;
                             break;
+                        case "--cache-dir":
+                            check(args, i, 1);
+                            cacheDir = new File(args[++i]);
+                            break;
+                        case "--cache-size":
+                            check(args, i, 1);
+                            RenderCache.setMaxBytes(
+                                    Long.parseLong(args[++i]) * 1024 * 1024);
+                            break;
+                        case "--no-cache":
+                            cacheDir = null;
+                            break;
+                        case "--image-cache":
+                            check(args, i, 1);
+                            ImageTools.setCacheBudget(
+                                    Long.parseLong(args[++i]) * 1024 * 1024);
+                            break;
+                        case "--stream":
+                            stream = true;
+                            break;
+                        case "--watch":
+                            watch = true;
+                            break;
+                        case "--serve":
+                            check(args, i, 1);
+                            servePort = Integer.parseInt(args[++i]);
+                            break;
+                        case "--serve-layout":
+                            check(args, i, 7);
+                            i = parsePageLayout(args, i);
+                            serveLayout = true;
+                            break;
+                        case "--pdf-vector":
+                            IO.setPDFVector(true);
+                            break;
+                        case "--pdf-scratch":
+                            check(args, i, 1);
+                            IO.setPDFScratchDirectory(new File(args[++i]));
+                            break;
+                        case "--pdf-memory":
+                            check(args, i, 1);
+                            IO.setPDFMemoryLimit(
+                                    Long.parseLong(args[++i]) * 1024 * 1024);
+                            break;
+                        case "--threads":
+                            check(args, i, 1);
+                            BatchRenderer.setThreads(Integer.parseInt(args[++i]));
+                            break;
+                        case "--png-level":
+                            check(args, i, 1);
+                            PNGEncoder.setLevel(Integer.parseInt(args[++i]));
+                            break;
+                        case "--png-filter":
+                            check(args, i, 1);
+                            int filter = PNGEncoder.parseFilter(args[++i]);
+                            if(filter < 0) {
+                                Log.err("Unknown PNG filter: " + args[i]);
+                                System.exit(1);
+                            }
+                            PNGEncoder.setFilter(filter);
+                            break;
+                        case "--jpg-quality":
+                            check(args, i, 1);
+                            JPEGEncoder.setQuality(
+                                    Integer.parseInt(args[++i]) / 100.0f);
+                            break;
+                        case "--jpg-subsampling":
+                            check(args, i, 1);
+                            int sampling =
+                                    JPEGEncoder.parseSubsampling(args[++i]);
+                            if(sampling < 0) {
+                                Log.err("Unknown chroma subsampling: " +
+                                        args[i]);
+                                System.exit(1);
+                            }
+                            JPEGEncoder.setSubsampling(sampling);
+                            break;
+                        case "--rewrite":
+                            IO.setRewrite(true);
+                            break;
+                        case "--prune":
+                            IO.setPrune(true);
+                            break;
                         case "--png":
                             check(args, i, 1);
                             pngOutputDir = args[++i];
@@ -123,22 +216,23 @@ public class Main {
                             check(args, i, 1);
                             jpgOutputDir = args[++i];
                             break;
+                        case "--svg":
+                            check(args, i, 1);
+                            svgOutputDir = args[++i];
+                            break;
                         case "--pdf":
                             check(args, i, 8);
                             pdf = args[++i];
-                            pdfPageSize = args[++i].toUpperCase();
-                            pdfLandscape = args[++i].toUpperCase().equals("LANDSCAPE");
-                            switch(args[++i].toUpperCase()) {
-                                case "MM":
-                                    pdfUnits = IO.UNIT_MM;
-                                    break;
-                                default:
-                                    pdfUnits = IO.UNIT_INCHES;
-                            }
-                            pdfPageHMargin = Float.parseFloat(args[++i]);
-                            pdfPageVMargin = Float.parseFloat(args[++i]);
-                            pdfBadgeHSpacing = Float.parseFloat(args[++i]);
-                            pdfBadgeVSpacing = Float.parseFloat(args[++i]);
+                            i = parsePageLayout(args, i);
+                            break;
+                        case "--pages":
+                            check(args, i, 8);
+                            pageOutputDir = args[++i];
+                            i = parsePageLayout(args, i);
+                            break;
+                        case "--page-dpi":
+                            check(args, i, 1);
+                            pageDPI = Integer.parseInt(args[++i]);
                             break;
                         case "-s":
                             check(args, i, 2);
@@ -183,66 +277,296 @@ public class Main {
             }
         }
                
-        if(!gui && file != null) {
-            if(pdf == null && pngOutputDir == null && cOutName == null) {
+        if(!gui && (file != null || servePort > 0)) {
+            if(servePort == 0 && pdf == null && pngOutputDir == null &&
+                    jpgOutputDir == null && svgOutputDir == null &&
+                    pageOutputDir == null && cOutName == null) {
                 Log.err("No output was specified");
                 System.exit(1);
             }
             
             Log.d(0, "Renderer: " + r.getDescription());
             
+            // rendered badges are only kept on disk when asked to
+            if(cacheDir != null) {
+                Log.d(0, "Render cache: " + cacheDir.getAbsolutePath());
+                RenderCache.setDirectory(cacheDir);
+            }
+            
             if(fontName != null) {
                 r.setProperty("font", fontName);
             }
             
-            List<Badge> badges = IO.readFromCSV(null, file,
-                                                width, height,
-                                                resolution);
-            if(badges == null) {
-                Log.err("No valid entries found");
-                System.exit(1);
+            if(servePort > 0) {
+                serve();
+                return;
             }
             
-            if(pdf != null) {
-                PDRectangle pageSize;
-                switch(pdfPageSize) {
-                    case "A0": pageSize = PDRectangle.A0; break;
-                    case "A1": pageSize = PDRectangle.A1; break;
-                    case "A2": pageSize = PDRectangle.A2; break;
-                    case "A3": pageSize = PDRectangle.A3; break;
-                    case "A4": pageSize = PDRectangle.A4; break;
-                    case "A5": pageSize = PDRectangle.A5; break;
-                    case "A6": pageSize = PDRectangle.A6; break;
-                    case "LEGAL": pageSize = PDRectangle.LEGAL; break;
-                    default:
-                        Log.d(0, "    Unknown paper size '" + pdfPageSize
-                                            + "', setting PDF page size to the "
-                                            + "default LETTER");
-                    case "LETTER": pageSize = PDRectangle.LETTER;
+            CustomOutput out = null;
+            if(cOutName != null) {
+                out = loadCustomOutput(cOutName, cOutFile);
+            }
+            if(watch) {
+                watch(out);
+            } else {
+                List<Badge> badges = null;
+                if(!stream) {
+                    badges = IO.readFromCSV(null, file, width, height,
+                                            resolution);
+                    if(badges == null) {
+                        Log.err("No valid entries found");
+                        System.exit(1);
+                    }
                 }
-                
-                IO.generatePDF(r, null, pageSize,
+                generate(badges, out);
+            }
+        } else {
+            // gui init
+            Log.errorDialogBox = true;
+            GUI.createMainWindow(file);
+        }
+    }
+    
+    /**
+     * Write every output for the badges, or for the badges streamed from the
+     * input file if badges is null
+     */
+    private static void generate(List<Badge> badges, CustomOutput out) {
+        // outputs that take rendered images share one render per badge
+        RenderPass pass = new RenderPass();
+        if(pdf != null && !IO.isPDFVector()) {
+            pass.add(IO.pdfOutput(getPageSize(),
+                                  pdfPageHMargin, pdfPageVMargin,
+                                  pdfBadgeHSpacing, pdfBadgeVSpacing,
+                                  pdfUnits, pdfLandscape,
+                                  preferLosslessOutput,
+                                  new File(pdf)));
+        }
+        if(pngOutputDir != null) {
+            pass.add(IO.pngOutput(pngOutputDir));
+        }
+        if(jpgOutputDir != null) {
+            pass.add(IO.jpgOutput(jpgOutputDir));
+        }
+        if(out instanceof CustomOutput.Streaming) {
+            ((CustomOutput.Streaming) out).begin(r, cOutArgs);
+            pass.add((CustomOutput.Streaming) out);
+        }
+        if(!pass.isEmpty()) {
+            IO.BadgeStream in = open(badges);
+            try {
+                pass.run(null, r, in != null ? in : badges.iterator(),
+                         in != null ? -1 : badges.size());
+            } finally {
+                close(in);
+            }
+        }
+        
+        if(pdf != null && IO.isPDFVector()) {
+            IO.BadgeStream in = open(badges);
+            try {
+                IO.generatePDF(r, null, getPageSize(),
                                pdfPageHMargin, pdfPageVMargin,
                                pdfBadgeHSpacing, pdfBadgeVSpacing,
                                pdfUnits, pdfLandscape,
                                preferLosslessOutput,
-                               badges, 
+                               in != null ? in : badges.iterator(),
+                               in != null ? -1 : badges.size(),
                                new File(pdf));
+            } finally {
+                close(in);
             }
-            if(pngOutputDir != null) {
-                IO.savePNG(r, null, badges, pngOutputDir);
+        }
+        if(pageOutputDir != null) {
+            IO.BadgeStream in = open(badges);
+            try {
+                IO.savePages(r, null, getPageSize(),
+                             pdfPageHMargin, pdfPageVMargin,
+                             pdfBadgeHSpacing, pdfBadgeVSpacing,
+                             pdfUnits, pdfLandscape, pageDPI,
+                             preferLosslessOutput,
+                             in != null ? in : badges.iterator(),
+                             in != null ? -1 : badges.size(),
+                             pageOutputDir);
+            } finally {
+                close(in);
             }
-            if(jpgOutputDir != null) {
-                IO.saveJPG(r, null, badges, jpgOutputDir);
+        }
+        if(svgOutputDir != null) {
+            IO.BadgeStream in = open(badges);
+            try {
+                IO.saveSVG(r, null, in != null ? in : badges.iterator(),
+                           in != null ? -1 : badges.size(), svgOutputDir,
+                           preferLosslessOutput);
+            } finally {
+                close(in);
             }
-            if(cOutName != null) {
-                CustomOutput out = loadCustomOutput(cOutName, cOutFile);
-                out.save(r, null, badges, cOutArgs);
+        }
+        if(out != null && !(out instanceof CustomOutput.Streaming)) {
+            if(badges == null) {
+                // custom outputs take the whole list
+                badges = IO.readFromCSV(null, file, width, height,
+                                        resolution);
+                if(badges == null) {
+                    Log.err("No valid entries found");
+                    System.exit(1);
+                }
             }
-        } else {
-            // gui init
-            Log.errorDialogBox = true;
-            GUI.createMainWindow(file);
+            // badges rendered by the pass come from the render cache, if any
+            out.save(RenderCache.wrap(r), null, badges, cOutArgs);
+        }
+    }
+    
+    /**
+     * Generate the outputs, then keep running and generate them again
+     * whenever the input file, a file the renderer reads or a background
+     * image changes. Only edited rows are parsed again, and badges that did
+     * not change are skipped altogether by the PNG and JPG outputs, or come
+     * from the render cache when one is set with --cache-dir
+     */
+    private static void watch(CustomOutput out) {
+        IO.BadgeTable table = new IO.BadgeTable(file, width, height,
+                                                resolution);
+        File input = new File(file).getAbsoluteFile();
+        InputWatcher watcher = null;
+        try {
+            watcher = new InputWatcher();
+            // changes made while the outputs are generated are not missed
+            watcher.watch(getWatchedFiles(input, table));
+            List<Badge> badges = table.read();
+            while(true) {
+                if(badges == null) {
+                    Log.err("No valid entries found");
+                } else {
+                    long start = System.currentTimeMillis();
+                    generate(badges, out);
+                    Log.d(0, "Generated " + badges.size() + " badges in " +
+                             (System.currentTimeMillis() - start) + " ms");
+                }
+                watcher.watch(getWatchedFiles(input, table));
+                Log.d(0, "Watching " + watcher.size() + " files for changes, " +
+                         "press Ctrl+C to stop");
+                Set<File> changed = watcher.await();
+                for(File f : changed) {
+                    Log.d(0, "Changed: " + f.getPath());
+                }
+                for(File f : r.getInputFiles()) {
+                    if(changed.contains(InputWatcher.normalize(f))) {
+                        r.reload();
+                        break;
+                    }
+                }
+                table.invalidate(changed);
+                badges = table.read();
+                if(badges != null) {
+                    Log.d(0, "    " + table.getParsedCount() + " of " +
+                             badges.size() + " rows parsed");
+                }
+            }
+        } catch(IOException ioe) {
+            Log.err("Failed to watch input files: " + ioe);
+            System.exit(1);
+        } catch(InterruptedException ie) {
+            Log.d(0, "Stopped watching");
+        } finally {
+            if(watcher != null) {
+                watcher.close();
+            }
+        }
+    }
+    
+    private static List<File> getWatchedFiles(File input,
+                                              IO.BadgeTable table) {
+        List<File> files = new ArrayList<>();
+        files.add(input);
+        files.addAll(r.getInputFiles());
+        files.addAll(table.getImageFiles());
+        return files;
+    }
+    
+    /**
+     * Render badges requested over HTTP until the process is stopped.
+     * Background paths are relative to the working directory
+     */
+    private static void serve() {
+        try {
+            RenderServer server = new RenderServer(r, width, height,
+                                                   resolution, new File("."));
+            if(serveLayout) {
+                server.setPDFLayout(getPageSize(),
+                                    pdfPageHMargin, pdfPageVMargin,
+                                    pdfBadgeHSpacing, pdfBadgeVSpacing,
+                                    pdfUnits, pdfLandscape,
+                                    preferLosslessOutput);
+            }
+            server.start(servePort);
+        } catch(IOException ioe) {
+            Log.err("Failed to start the render server: " + ioe);
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * Open the input file for streaming, or return null if the badges were
+     * already read into memory. Every output reads the file again
+     */
+    private static IO.BadgeStream open(List<Badge> badges) {
+        if(badges != null) {
+            return null;
+        }
+        try {
+            return IO.streamCSV(file, width, height, resolution);
+        } catch(IOException ioe) {
+            Log.err("Failed to open " + file + ": " + ioe.getMessage());
+            System.exit(1);
+        }
+        return null;
+    }
+    
+    private static void close(IO.BadgeStream in) {
+        if(in != null) {
+            in.close();
+            Log.d(0, "    " + in.getCount() + " entries read");
+        }
+    }
+    
+    /**
+     * Read the page format shared by the PDF and page image outputs
+     *
+     * @return index of the last argument read
+     */
+    private static int parsePageLayout(String[] args, int i) {
+        pdfPageSize = args[++i].toUpperCase();
+        pdfLandscape = args[++i].toUpperCase().equals("LANDSCAPE");
+        switch(args[++i].toUpperCase()) {
+            case "MM":
+                pdfUnits = IO.UNIT_MM;
+                break;
+            default:
+                pdfUnits = IO.UNIT_INCHES;
+        }
+        pdfPageHMargin = Float.parseFloat(args[++i]);
+        pdfPageVMargin = Float.parseFloat(args[++i]);
+        pdfBadgeHSpacing = Float.parseFloat(args[++i]);
+        pdfBadgeVSpacing = Float.parseFloat(args[++i]);
+        return i;
+    }
+    
+    private static PDRectangle getPageSize() {
+        switch(pdfPageSize) {
+            case "A0": return PDRectangle.A0;
+            case "A1": return PDRectangle.A1;
+            case "A2": return PDRectangle.A2;
+            case "A3": return PDRectangle.A3;
+            case "A4": return PDRectangle.A4;
+            case "A5": return PDRectangle.A5;
+            case "A6": return PDRectangle.A6;
+            case "LEGAL": return PDRectangle.LEGAL;
+            default:
+                Log.d(0, "    Unknown paper size '" + pdfPageSize
+                                    + "', setting page size to the "
+                                    + "default LETTER");
+            case "LETTER": return PDRectangle.LETTER;
         }
     }
     
@@ -391,16 +715,77 @@ public class Main {
                 + "  -r RESOLUTION          output image resolution (dots per units, default " +
                                             Badge.DEFAULT_RESOLUTION + ")\n"
                 + "  -p                     use lossless image format when applicable\n"
+                + "  --threads N            number of badges to render concurrently (default " +
+                                            BatchRenderer.getThreads() + ")\n"
+                + "  --cache-dir DIRECTORY  keep rendered badges in DIRECTORY and reuse them for\n"
+                + "                           unchanged badges, e.g. " +
+                                            RenderCache.getDefaultDirectory() + "\n"
+                + "                           (default: no render cache)\n"
+                + "  --cache-size MB        render cache size limit in megabytes (default " +
+                                            RenderCache.getMaxBytes() / 1024 / 1024 + ")\n"
+                + "  --no-cache             turn off a render cache set by an earlier --cache-dir\n"
+                + "  --stream               read the input file while rendering instead of\n"
+                + "                           loading all entries first\n"
+                + "  --watch                keep running and update the outputs when the input\n"
+                + "                           file, script or images change (overrides\n"
+                + "                           --stream), unchanged PNG and JPG files are\n"
+                + "                           skipped and other outputs reuse unchanged\n"
+                + "                           badges with --cache-dir\n"
+                + "  --image-cache MB       memory limit for decoded images in megabytes\n"
+                + "                           (default " +
+                                            ImageTools.getCacheBudget() / 1024 / 1024 + ")\n"
+                + "  --png-level N          PNG compression level from 0 (fastest) to 9\n"
+                + "                           (smallest), default " +
+                                            PNGEncoder.getLevel() + "\n"
+                + "  --png-filter FILTER    PNG row filter: none, sub, up, average, paeth or\n"
+                + "                           adaptive (default " +
+                                            PNGEncoder.getFilterName(
+                                                    PNGEncoder.getFilter()) +
+                                            ")\n"
+                + "  --jpg-quality Q        JPEG quality from 1 to 100 (default " +
+                                            Math.round(JPEGEncoder.getQuality() * 100) +
+                                            ")\n"
+                + "  --jpg-subsampling S    JPEG chroma subsampling: 444, 422 or 420\n"
+                + "                           (default " +
+                                            JPEGEncoder.getSubsamplingName(
+                                                    JPEGEncoder.getSubsampling()) +
+                                            ")\n"
                 + "  --custom-classes       display information on custom classes\n"
+                + "  --serve PORT           render badges on request instead of reading an\n"
+                + "                           input file: POST CSV or JSON rows to\n"
+                + "                           http://127.0.0.1:PORT/render?format=png, jpg or\n"
+                + "                           pdf, background paths are relative to the\n"
+                + "                           working directory\n"
+                + "  --serve-layout SIZE ORIENTATION UNITS H-MARGIN V-MARGIN H-SPACING V-SPACING\n"
+                + "                         page format of served PDFs, as for --pdf\n"
+                + "                           (default LETTER PORTRAIT INCHES 0.5 0.5 0.2 0.2)\n"
                 + "\n"
                 + "OUTPUT formats (must specify at least one if '-i' is used):\n" 
                 + "  --png DIRECTORY        output badges as PNG files\n"
                 + "  --jpg DIRECTORY        output badges as JPG files\n"
+                + "  --rewrite              write every PNG and JPG file, by default files\n"
+                + "                           made from unchanged badges are skipped\n"
+                + "  --prune                delete PNG and JPG files of rows that are no\n"
+                + "                           longer in the input\n"
+                + "  --svg DIRECTORY        output badges as SVG files, images are saved in\n"
+                + "                           DIRECTORY/images\n"
                 + "  --pdf FILENAME SIZE ORIENTATION UNITS H-MARGIN V-MARGIN H-SPACING V-SPACING\n"
                 + "                         generate a PDF document with the specified format\n"
                 + "                           valid sizes: A0, ... A6, LETTER, LEGAL\n"
                 + "                           orientations: PORTRAIT, LANDSCAPE\n"
                 + "                           units: MM, INCHES\n"
+                + "  --pages DIRECTORY SIZE ORIENTATION UNITS H-MARGIN V-MARGIN H-SPACING V-SPACING\n"
+                + "                         save pages laid out like the PDF as page-NNN.jpg\n"
+                + "                           images, or PNG with -p\n"
+                + "  --page-dpi N           page image resolution (default 300)\n"
+                + "  --pdf-vector           draw badges in PDFs as shapes and text outlines\n"
+                + "                           instead of images where the renderer supports it\n"
+                + "  --pdf-scratch DIRECTORY\n"
+                + "                         keep PDF data that exceeds the memory limit in\n"
+                + "                           DIRECTORY (default: system temporary directory)\n"
+                + "  --pdf-memory MB        PDF data kept in memory before using scratch\n"
+                + "                           files, -1 for no limit (default " +
+                                            IO.getPDFMemoryLimit() / 1024 / 1024 + ")\n"
 
                 + "";
         return help;
@@ -0,0 +1,249 @@
+/*
+    Copyright 2017 Wira Mulia
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+package org.osumercury.badgemaker;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Record of the files of one type in an output directory and the
+ * fingerprints they were made from. Each file type has its own manifest so
+ * outputs that share a directory do not overwrite each other's records. A
+ * file whose fingerprint is unchanged and that has not been touched since
+ * it was written does not need to be written again. Files recorded by an
+ * earlier run that were not output again are stale, e.g. because their
+ * rows were removed from the input
+ *
+ * @author wira
+ */
+public class OutputManifest {
+    public static final String FILE_NAME = ".mercbm-manifest";
+    private static final String HEADER = "# mercbm output manifest 1";
+
+    private final File dir;
+    private final String extension;
+    private final Map<String, Entry> previous = new ConcurrentHashMap<>();
+    private final Map<String, Entry> current = new ConcurrentHashMap<>();
+
+    /**
+     * Load the manifest of the files with extension in dir, a missing or
+     * unreadable manifest is empty
+     *
+     * @param extension file name extension without the dot, e.g. "png"
+     */
+    public OutputManifest(File dir, String extension) {
+        this.dir = dir;
+        this.extension = extension;
+        File f = getFile();
+        if(!f.exists()) {
+            return;
+        }
+        try(BufferedReader r = Files.newBufferedReader(f.toPath(),
+                StandardCharsets.UTF_8)) {
+            String line = r.readLine();
+            if(!HEADER.equals(line)) {
+                Log.d(0, "Ignoring unknown manifest " + f.getAbsolutePath());
+                return;
+            }
+            while((line = r.readLine()) != null) {
+                // fingerprint, size, modification time, file name
+                String[] fields = line.split("\t", 4);
+                if(fields.length < 4) {
+                    continue;
+                }
+                try {
+                    previous.put(fields[3], new Entry(fields[0],
+                            Long.parseLong(fields[1]),
+                            Long.parseLong(fields[2])));
+                } catch(NumberFormatException nfe) {
+                    // the file is written again
+                }
+            }
+        } catch(IOException ioe) {
+            Log.err("Failed to read manifest " + f.getAbsolutePath() +
+                    ", reason: " + ioe);
+            previous.clear();
+        }
+    }
+
+    /**
+     * @return true if the file was made from the fingerprint, by this run or
+     *         an earlier one, and still has the size and modification time
+     *         it was written with. Safe to call from any thread
+     */
+    public boolean isCurrent(String name, String fingerprint) {
+        Entry e = current.get(name);
+        if(e == null) {
+            e = previous.get(name);
+        }
+        if(e == null || !e.fingerprint.equals(fingerprint)) {
+            return false;
+        }
+        Entry now = stat(name, fingerprint);
+        return now != null && now.size == e.size &&
+               now.modified == e.modified;
+    }
+
+    /**
+     * Record that the file was just written from the fingerprint
+     */
+    public void written(String name, String fingerprint) {
+        Entry e = stat(name, fingerprint);
+        if(e == null) {
+            forget(name);
+        } else {
+            current.put(name, e);
+        }
+    }
+
+    /**
+     * Record that the file is up to date and was left as it is
+     */
+    public void kept(String name) {
+        Entry e = current.get(name);
+        if(e == null) {
+            e = previous.get(name);
+        }
+        if(e != null) {
+            current.put(name, e);
+        }
+    }
+
+    /**
+     * Drop the file from the manifest, e.g. because writing it failed. It
+     * is written again next time and never deleted as stale
+     */
+    public void forget(String name) {
+        previous.remove(name);
+        current.remove(name);
+    }
+
+    /**
+     * @return files recorded by an earlier run that were not output by this
+     *         one. Only files with this manifest's extension are listed
+     */
+    public List<String> getStale() {
+        List<String> stale = new ArrayList<>();
+        for(String name : previous.keySet()) {
+            if(!current.containsKey(name) &&
+               name.endsWith("." + extension)) {
+                stale.add(name);
+            }
+        }
+        return stale;
+    }
+
+    /**
+     * Delete the stale files and drop them from the manifest
+     *
+     * @return number of files deleted
+     */
+    public int prune(Progress p) {
+        int deleted = 0;
+        for(String name : getStale()) {
+            File f = new File(dir, name);
+            if(p != null) {
+                p.text = "Deleting " + name;
+            }
+            Log.d(0, "    Deleting " + f.getAbsolutePath());
+            try {
+                if(Files.deleteIfExists(f.toPath())) {
+                    deleted++;
+                }
+                previous.remove(name);
+            } catch(IOException ioe) {
+                Log.err("Failed to delete " + name + ", reason: " + ioe);
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Write the manifest, replacing the old one in a single step so an
+     * interrupted save leaves the previous manifest intact. Stale files
+     * that were not pruned stay recorded
+     */
+    public void save() {
+        if(!dir.isDirectory()) {
+            return;
+        }
+        Map<String, Entry> entries = new TreeMap<>(previous);
+        entries.putAll(current);
+        Path target = getFile().toPath();
+        Path tmp = new File(dir, getFile().getName() + ".tmp").toPath();
+        try {
+            try(BufferedWriter w = Files.newBufferedWriter(tmp,
+                    StandardCharsets.UTF_8)) {
+                w.write(HEADER);
+                w.write("\n");
+                for(Map.Entry<String, Entry> e : entries.entrySet()) {
+                    Entry v = e.getValue();
+                    w.write(v.fingerprint + "\t" + v.size + "\t" +
+                            v.modified + "\t" + e.getKey() + "\n");
+                }
+            }
+            try {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+            } catch(AtomicMoveNotSupportedException amnse) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch(IOException ioe) {
+            Log.err("Failed to save manifest " + target + ", reason: " +
+                    ioe);
+        }
+    }
+
+    private File getFile() {
+        return new File(dir, FILE_NAME + "-" + extension);
+    }
+
+    private Entry stat(String name, String fingerprint) {
+        try {
+            BasicFileAttributes attr = Files.readAttributes(
+                    new File(dir, name).toPath(), BasicFileAttributes.class);
+            return new Entry(fingerprint, attr.size(),
+                             attr.lastModifiedTime().toMillis());
+        } catch(IOException ioe) {
+            return null;
+        }
+    }
+
+    private static class Entry {
+        private final String fingerprint;
+        private final long size;
+        private final long modified;
+
+        private Entry(String fingerprint, long size, long modified) {
+            this.fingerprint = fingerprint;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+}
@@ -0,0 +1,386 @@
+/*
+    Copyright 2017 Wira Mulia
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+package org.osumercury.badgemaker;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.GraphicsEnvironment;
+import java.awt.Shape;
+import java.awt.font.FontRenderContext;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.PathIterator;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import org.apache.fontbox.ttf.TrueTypeFont;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.FontMapping;
+import org.apache.pdfbox.pdmodel.font.FontMappers;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.apache.pdfbox.pdmodel.font.PDType0Font;
+import org.apache.pdfbox.pdmodel.graphics.image.JPEGFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.pdmodel.graphics.state.PDExtendedGraphicsState;
+import org.apache.pdfbox.util.Matrix;
+
+/**
+ * Vector graphics that write to a PDF page content stream. Shapes become
+ * path operators, images are embedded once per document and text is shown
+ * with a subset of the installed TrueType font it was set in. Text that
+ * needs shaping or whose font can not be embedded is drawn as outlines.
+ * Content stream errors are thrown as UncheckedIOException
+ *
+ * @author wira
+ */
+public class PDFGraphics2D extends VectorGraphics2D {
+    private final Resources resources;
+    private final PDPageContentStream out;
+    private final Shape baseClip;
+
+    /**
+     * @param transform maps user space to PDF page coordinates
+     * @param clip clip already set on the content stream by the caller, in
+     *             page coordinates
+     */
+    public PDFGraphics2D(Resources resources, PDPageContentStream out,
+                         AffineTransform transform, Shape clip) {
+        super(transform, clip);
+        this.resources = resources;
+        this.out = out;
+        this.baseClip = clip;
+    }
+
+    @Override
+    protected VectorGraphics2D createSibling() {
+        return new PDFGraphics2D(resources, out, getTransform(), baseClip);
+    }
+
+    @Override
+    protected void fillShape(Shape s, Color c) {
+        try {
+            boolean state = begin(c.getAlpha());
+            out.setNonStrokingColor(new Color(c.getRed(), c.getGreen(),
+                                              c.getBlue()));
+            if(append(s)) {
+                out.fillEvenOdd();
+            } else {
+                out.fill();
+            }
+            end(state);
+        } catch(IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    @Override
+    protected void placeImage(BufferedImage img, AffineTransform at,
+                              float alpha) {
+        try {
+            PDImageXObject x = resources.getImage(img);
+            boolean state = begin(Math.round(alpha * 255));
+            // the image occupies the unit square with its top row at y = 1
+            AffineTransform m = new AffineTransform(at);
+            m.concatenate(new AffineTransform(img.getWidth(), 0, 0,
+                                              -img.getHeight(),
+                                              0, img.getHeight()));
+            out.saveGraphicsState();
+            out.transform(new Matrix(m));
+            out.drawImage(x, 0, 0, 1, 1);
+            out.restoreGraphicsState();
+            end(state);
+        } catch(IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    @Override
+    protected boolean drawText(String str, Font font, AffineTransform at,
+                               Color c) {
+        try {
+            PDFont pdFont = resources.getFont(font);
+            if(pdFont == null || !canShow(pdFont, font, str)) {
+                return false;
+            }
+            boolean state = begin(c.getAlpha());
+            out.setNonStrokingColor(new Color(c.getRed(), c.getGreen(),
+                                              c.getBlue()));
+            // text space has y pointing up, AWT font space has it down
+            AffineTransform m = new AffineTransform(at);
+            m.scale(1, -1);
+            out.beginText();
+            out.setFont(pdFont, font.getSize2D());
+            out.setTextMatrix(new Matrix(m));
+            out.showText(str);
+            out.endText();
+            end(state);
+            return true;
+        } catch(IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    /**
+     * @return true if str needs no layout beyond the font's advances and
+     *         pdFont has a glyph for each of its characters
+     */
+    private static boolean canShow(PDFont pdFont, Font font, String str)
+            throws IOException {
+        char[] chars = str.toCharArray();
+        if(font.isTransformed() || font.hasLayoutAttributes() ||
+           Font.textRequiresLayout(chars, 0, chars.length)) {
+            return false;
+        }
+        try {
+            pdFont.encode(str);
+            return true;
+        } catch(IllegalArgumentException iae) {
+            return false;
+        }
+    }
+
+    /**
+     * Set up clipping and transparency that differ from the page state
+     *
+     * @return true if the graphics state was saved and has to be restored
+     */
+    private boolean begin(int alpha) throws IOException {
+        Shape clip = getDeviceClip();
+        boolean clipped = clip != baseClip;
+        if(!clipped && alpha >= 255) {
+            return false;
+        }
+        out.saveGraphicsState();
+        if(clipped && clip != null) {
+            if(append(clip)) {
+                out.clipEvenOdd();
+            } else {
+                out.clip();
+            }
+        }
+        if(alpha < 255) {
+            out.setGraphicsStateParameters(resources.getAlphaState(alpha));
+        }
+        return true;
+    }
+
+    private void end(boolean state) throws IOException {
+        if(state) {
+            out.restoreGraphicsState();
+        }
+    }
+
+    /**
+     * Append the path of s to the content stream
+     *
+     * @return true if the path uses the even-odd winding rule
+     */
+    private boolean append(Shape s) throws IOException {
+        PathIterator it = s.getPathIterator(null);
+        float[] c = new float[6];
+        float x = 0, y = 0;
+        while(!it.isDone()) {
+            switch(it.currentSegment(c)) {
+                case PathIterator.SEG_MOVETO:
+                    out.moveTo(c[0], c[1]);
+                    x = c[0];
+                    y = c[1];
+                    break;
+                case PathIterator.SEG_LINETO:
+                    out.lineTo(c[0], c[1]);
+                    x = c[0];
+                    y = c[1];
+                    break;
+                case PathIterator.SEG_QUADTO:
+                    // raise the quadratic segment to a cubic one
+                    out.curveTo(x + 2 * (c[0] - x) / 3, y + 2 * (c[1] - y) / 3,
+                                c[2] + 2 * (c[0] - c[2]) / 3,
+                                c[3] + 2 * (c[1] - c[3]) / 3,
+                                c[2], c[3]);
+                    x = c[2];
+                    y = c[3];
+                    break;
+                case PathIterator.SEG_CUBICTO:
+                    out.curveTo(c[0], c[1], c[2], c[3], c[4], c[5]);
+                    x = c[4];
+                    y = c[5];
+                    break;
+                case PathIterator.SEG_CLOSE:
+                    out.closePath();
+                    break;
+            }
+            it.next();
+        }
+        return it.getWindingRule() == PathIterator.WIND_EVEN_ODD;
+    }
+
+    @Override
+    public String toString() {
+        return "PDFGraphics2D";
+    }
+
+    /**
+     * Images, fonts and graphics states shared by every page of a document.
+     * Images are keyed by identity, so a background decoded once is embedded
+     * once
+     */
+    public static class Resources {
+        private static final List<String> LOGICAL_FONTS = Arrays.asList(
+                Font.DIALOG, Font.DIALOG_INPUT, Font.SANS_SERIF, Font.SERIF,
+                Font.MONOSPACED);
+        private static final String PROBE = "AaBbGgQqRrWw0123&@";
+        private static final FontRenderContext FRC =
+                new FontRenderContext(null, true, true);
+        // AWT font name to the PostScript name of the face drawing it
+        private static final Map<String, String> faces = new HashMap<>();
+
+        private final PDDocument doc;
+        private final boolean lossless;
+        private final Map<BufferedImage, PDImageXObject> images =
+                new WeakHashMap<>();
+        private final Map<Integer, PDExtendedGraphicsState> states =
+                new HashMap<>();
+        private final Map<String, PDFont> fonts = new HashMap<>();
+
+        /**
+         * @param lossless embed opaque images losslessly instead of as JPEG
+         */
+        public Resources(PDDocument doc, boolean lossless) {
+            this.doc = doc;
+            this.lossless = lossless;
+        }
+
+        private PDImageXObject getImage(BufferedImage img) throws IOException {
+            PDImageXObject x = images.get(img);
+            if(x == null) {
+                // images with transparency keep sharp edges losslessly
+                x = lossless || img.getColorModel().hasAlpha() ?
+                    LosslessFactory.createFromImage(doc, img) :
+                    JPEGFactory.createFromImage(doc, img);
+                images.put(img, x);
+            }
+            return x;
+        }
+
+        /**
+         * @return the font embedded as a subset, or null if no installed
+         *         TrueType font draws it
+         */
+        private PDFont getFont(Font font) {
+            String name = font.getPSName();
+            if(fonts.containsKey(name)) {
+                return fonts.get(name);
+            }
+            PDFont pdFont = null;
+            String face = getFace(font);
+            FontMapping<TrueTypeFont> mapping = face == null ? null :
+                    FontMappers.instance().getTrueTypeFont(face, null);
+            if(mapping != null && !mapping.isFallback()) {
+                try {
+                    pdFont = PDType0Font.load(doc, mapping.getFont(), true);
+                } catch(IOException ioe) {
+                    // e.g. the font does not permit embedding
+                    Log.d(0, "    Drawing " + name + " as outlines: " +
+                          ioe.getMessage());
+                }
+            }
+            fonts.put(name, pdFont);
+            return pdFont;
+        }
+
+        /**
+         * @return PostScript name of the installed face that draws font, or
+         *         null if no face has the style, e.g. a synthesized italic.
+         *         Logical fonts are matched to a face by their outlines
+         */
+        private static synchronized String getFace(Font font) {
+            String name = font.getPSName();
+            if(faces.containsKey(name)) {
+                return faces.get(name);
+            }
+            Font face = font;
+            if(LOGICAL_FONTS.contains(font.getFamily())) {
+                face = null;
+                Shape outline = getOutline(font);
+                for(String family : GraphicsEnvironment
+                        .getLocalGraphicsEnvironment()
+                        .getAvailableFontFamilyNames()) {
+                    Font f = new Font(family, font.getStyle(), 1);
+                    if(!LOGICAL_FONTS.contains(family) &&
+                       isSamePath(outline, getOutline(f))) {
+                        face = f;
+                        break;
+                    }
+                }
+            }
+            String ps = face == null || isSynthesized(face) ? null :
+                        face.getPSName();
+            faces.put(name, ps);
+            return ps;
+        }
+
+        private static Shape getOutline(Font font) {
+            return font.deriveFont(64f).createGlyphVector(FRC, PROBE)
+                       .getOutline();
+        }
+
+        private static boolean isSamePath(Shape a, Shape b) {
+            PathIterator i = a.getPathIterator(null);
+            PathIterator j = b.getPathIterator(null);
+            double[] c = new double[6];
+            double[] d = new double[6];
+            while(!i.isDone() && !j.isDone()) {
+                if(i.currentSegment(c) != j.currentSegment(d) ||
+                   !Arrays.equals(c, d)) {
+                    return false;
+                }
+                i.next();
+                j.next();
+            }
+            return i.isDone() && j.isDone();
+        }
+
+        /**
+         * @return true if a bold or italic style of font is drawn by the
+         *         face without that style
+         */
+        private static boolean isSynthesized(Font font) {
+            for(int s : new int[] { Font.BOLD, Font.ITALIC }) {
+                if((font.getStyle() & s) != 0 && font.getPSName().equals(
+                        font.deriveFont(font.getStyle() & ~s).getPSName())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private PDExtendedGraphicsState getAlphaState(int alpha) {
+            PDExtendedGraphicsState state = states.get(alpha);
+            if(state == null) {
+                state = new PDExtendedGraphicsState();
+                state.setNonStrokingAlphaConstant(alpha / 255.0f);
+                states.put(alpha, state);
+            }
+            return state;
+        }
+    }
+}
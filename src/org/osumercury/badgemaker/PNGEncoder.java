@@ -0,0 +1,384 @@
+/*
+    Copyright 2017 Wira Mulia
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+package org.osumercury.badgemaker;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.stream.IntStream;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * PNG encoder that reads int pixel rasters directly. Rows are filtered and
+ * compressed in independent blocks on the common fork/join pool, each block
+ * primed with the end of the previous one so the result is still a single
+ * zlib stream, like pigz does. Images are written as 8-bit RGB, or RGBA
+ * when any pixel is not opaque
+ *
+ * @author wira
+ */
+public class PNGEncoder {
+    public static final int FILTER_NONE = 0;
+    public static final int FILTER_SUB = 1;
+    public static final int FILTER_UP = 2;
+    public static final int FILTER_AVERAGE = 3;
+    public static final int FILTER_PAETH = 4;
+    public static final int FILTER_ADAPTIVE = 5;
+
+    private static final String[] FILTER_NAMES = {
+        "none", "sub", "up", "average", "paeth", "adaptive"
+    };
+    private static final byte[] SIGNATURE = {
+        (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'
+    };
+    // uncompressed bytes per block and the deflate window that primes it
+    private static final int BLOCK_SIZE = 128 * 1024;
+    private static final int DICTIONARY = 32 * 1024;
+
+    private static int level = 4;
+    private static int filter = FILTER_UP;
+
+    /**
+     * Set the deflate level, 0 (store) to 9 (smallest)
+     */
+    public static void setLevel(int level) {
+        PNGEncoder.level = Math.max(0, Math.min(9, level));
+    }
+
+    public static int getLevel() {
+        return level;
+    }
+
+    /**
+     * Set the row filter, one of the FILTER constants. Adaptive picks the
+     * filter with the smallest output for every row
+     */
+    public static void setFilter(int filter) {
+        if(filter < FILTER_NONE || filter > FILTER_ADAPTIVE) {
+            throw new IllegalArgumentException("invalid filter " + filter);
+        }
+        PNGEncoder.filter = filter;
+    }
+
+    public static int getFilter() {
+        return filter;
+    }
+
+    public static String getFilterName(int filter) {
+        return FILTER_NAMES[filter];
+    }
+
+    /**
+     * @return the filter constant for a name, or -1 if there is none
+     */
+    public static int parseFilter(String name) {
+        for(int i = 0; i < FILTER_NAMES.length; i++) {
+            if(FILTER_NAMES[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public static byte[] encode(BufferedImage img) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(img, out);
+        return out.toByteArray();
+    }
+
+    public static void write(BufferedImage img, File f) throws IOException {
+        try(OutputStream out = new BufferedOutputStream(
+                new FileOutputStream(f))) {
+            write(img, out);
+        }
+    }
+
+    public static void write(BufferedImage img, OutputStream os)
+            throws IOException {
+        final int level = PNGEncoder.level;
+        final int filter = PNGEncoder.filter;
+        Raster raster = img.getRaster();
+        if(!(raster.getDataBuffer() instanceof DataBufferInt) ||
+           (img.getType() != BufferedImage.TYPE_INT_ARGB &&
+            img.getType() != BufferedImage.TYPE_INT_RGB)) {
+            img = convert(img);
+            raster = img.getRaster();
+        }
+        final int w = img.getWidth();
+        final int h = img.getHeight();
+        final int[] px = ((DataBufferInt) raster.getDataBuffer()).getData();
+        final int stride = ((SinglePixelPackedSampleModel)
+                            raster.getSampleModel()).getScanlineStride();
+        final int offset = raster.getDataBuffer().getOffset() -
+                           raster.getSampleModelTranslateX() -
+                           raster.getSampleModelTranslateY() * stride;
+        final int bpp = img.getType() == BufferedImage.TYPE_INT_ARGB &&
+                        !ImageTools.isOpaque(img) ? 4 : 3;
+
+        final int rowBytes = w * bpp + 1;
+        final int rows = Math.max(1, BLOCK_SIZE / rowBytes);
+        final int blocks = (h + rows - 1) / rows;
+        final byte[] filtered = new byte[rowBytes * h];
+        IntStream.range(0, blocks).parallel().forEach((b) -> {
+            filterRows(px, offset, stride, w, bpp, filter, b * rows,
+                       Math.min(h, (b + 1) * rows), filtered);
+        });
+        final byte[][] deflated = new byte[blocks][];
+        final long[] checksums = new long[blocks];
+        IntStream.range(0, blocks).parallel().forEach((b) -> {
+            int start = b * rows * rowBytes;
+            int end = Math.min(h, (b + 1) * rows) * rowBytes;
+            deflated[b] = deflate(filtered, start, end, level,
+                                  b == blocks - 1);
+            Adler32 adler = new Adler32();
+            adler.update(filtered, start, end - start);
+            checksums[b] = adler.getValue();
+        });
+        long adler = checksums[0];
+        for(int b = 1; b < blocks; b++) {
+            int len = (Math.min(h, (b + 1) * rows) - b * rows) * rowBytes;
+            adler = combine(adler, checksums[b], len);
+        }
+
+        DataOutputStream out = new DataOutputStream(os);
+        out.write(SIGNATURE);
+        ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+        DataOutputStream hdr = new DataOutputStream(header);
+        hdr.writeInt(w);
+        hdr.writeInt(h);
+        hdr.writeByte(8);                   // bits per sample
+        hdr.writeByte(bpp == 4 ? 6 : 2);    // RGBA or RGB
+        hdr.writeByte(0);                   // deflate
+        hdr.writeByte(0);                   // adaptive filtering
+        hdr.writeByte(0);                   // no interlace
+        chunk(out, "IHDR", header.toByteArray());
+        // one IDAT chunk per block, the zlib header and checksum wrap the
+        // concatenated raw deflate data
+        byte[] zlibHeader = { 0x78, (byte) (level < 2 ? 0x01 :
+                                            level < 6 ? 0x5e :
+                                            level == 6 ? 0x9c : 0xda) };
+        byte[] trailer = {
+            (byte) (adler >>> 24), (byte) (adler >>> 16),
+            (byte) (adler >>> 8), (byte) adler
+        };
+        for(int b = 0; b < blocks; b++) {
+            chunk(out, "IDAT", b == 0 ? zlibHeader : null, deflated[b],
+                  b == blocks - 1 ? trailer : null);
+        }
+        chunk(out, "IEND");
+        out.flush();
+    }
+
+    private static BufferedImage convert(BufferedImage img) {
+        BufferedImage copy = new BufferedImage(img.getWidth(),
+                img.getHeight(), img.getColorModel().hasAlpha() ?
+                                 BufferedImage.TYPE_INT_ARGB :
+                                 BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = copy.createGraphics();
+        g.drawImage(img, 0, 0, null);
+        g.dispose();
+        return copy;
+    }
+
+    /**
+     * Filter rows y0 up to y1 into out, each row prefixed by its filter type
+     */
+    private static void filterRows(int[] px, int offset, int stride, int w,
+                                   int bpp, int filter, int y0, int y1,
+                                   byte[] out) {
+        int n = w * bpp;
+        byte[] prev = new byte[n];
+        byte[] cur = new byte[n];
+        byte[][] trials = filter == FILTER_ADAPTIVE ? new byte[5][n] : null;
+        if(y0 > 0) {
+            unpack(px, offset + (y0 - 1) * stride, w, bpp, prev);
+        }
+        for(int y = y0; y < y1; y++) {
+            unpack(px, offset + y * stride, w, bpp, cur);
+            int pos = y * (n + 1);
+            if(trials == null) {
+                out[pos] = (byte) filter;
+                apply(filter, cur, prev, bpp, out, pos + 1);
+            } else {
+                // pick the filter with the smallest sum of signed bytes
+                int best = 0;
+                long bestSum = Long.MAX_VALUE;
+                for(int t = 0; t < 5; t++) {
+                    apply(t, cur, prev, bpp, trials[t], 0);
+                    long sum = 0;
+                    for(byte v : trials[t]) {
+                        sum += Math.abs(v);
+                    }
+                    if(sum < bestSum) {
+                        bestSum = sum;
+                        best = t;
+                    }
+                }
+                out[pos] = (byte) best;
+                System.arraycopy(trials[best], 0, out, pos + 1, n);
+            }
+            byte[] swap = prev;
+            prev = cur;
+            cur = swap;
+        }
+    }
+
+    private static void unpack(int[] px, int i, int w, int bpp, byte[] row) {
+        int j = 0;
+        for(int x = 0; x < w; x++) {
+            int p = px[i + x];
+            row[j++] = (byte) (p >>> 16);
+            row[j++] = (byte) (p >>> 8);
+            row[j++] = (byte) p;
+            if(bpp == 4) {
+                row[j++] = (byte) (p >>> 24);
+            }
+        }
+    }
+
+    private static void apply(int type, byte[] cur, byte[] prev, int bpp,
+                              byte[] out, int off) {
+        int n = cur.length;
+        switch(type) {
+            case FILTER_NONE:
+                System.arraycopy(cur, 0, out, off, n);
+                break;
+            case FILTER_SUB:
+                for(int i = 0; i < n; i++) {
+                    int a = i < bpp ? 0 : cur[i - bpp];
+                    out[off + i] = (byte) (cur[i] - a);
+                }
+                break;
+            case FILTER_UP:
+                for(int i = 0; i < n; i++) {
+                    out[off + i] = (byte) (cur[i] - prev[i]);
+                }
+                break;
+            case FILTER_AVERAGE:
+                for(int i = 0; i < n; i++) {
+                    int a = i < bpp ? 0 : cur[i - bpp] & 0xff;
+                    out[off + i] = (byte) (cur[i] -
+                                           ((a + (prev[i] & 0xff)) >> 1));
+                }
+                break;
+            case FILTER_PAETH:
+                for(int i = 0; i < n; i++) {
+                    int a = i < bpp ? 0 : cur[i - bpp] & 0xff;
+                    int b = prev[i] & 0xff;
+                    int c = i < bpp ? 0 : prev[i - bpp] & 0xff;
+                    int pa = Math.abs(b - c);
+                    int pb = Math.abs(a - c);
+                    int pc = Math.abs(a + b - 2 * c);
+                    int pred = pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+                    out[off + i] = (byte) (cur[i] - pred);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Compress data[start..end) as raw deflate data. Blocks other than the
+     * last end on a byte boundary without closing the stream
+     */
+    private static byte[] deflate(byte[] data, int start, int end, int level,
+                                  boolean last) {
+        Deflater d = new Deflater(level, true);
+        try {
+            if(start > 0) {
+                int dict = Math.min(DICTIONARY, start);
+                d.setDictionary(data, start - dict, dict);
+            }
+            d.setInput(data, start, end - start);
+            ByteArrayOutputStream out =
+                    new ByteArrayOutputStream((end - start) / 4 + 64);
+            byte[] buf = new byte[16 * 1024];
+            if(last) {
+                d.finish();
+                while(!d.finished()) {
+                    out.write(buf, 0, d.deflate(buf));
+                }
+            } else {
+                int count;
+                do {
+                    count = d.deflate(buf, 0, buf.length,
+                                      Deflater.SYNC_FLUSH);
+                    out.write(buf, 0, count);
+                } while(count == buf.length);
+            }
+            return out.toByteArray();
+        } finally {
+            d.end();
+        }
+    }
+
+    /**
+     * Adler-32 of two concatenated pieces from their checksums
+     */
+    private static long combine(long adler1, long adler2, long len2) {
+        final long BASE = 65521;
+        long rem = len2 % BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % BASE;
+        sum1 += (adler2 & 0xffff) + BASE - 1;
+        sum2 += ((adler1 >>> 16) & 0xffff) + ((adler2 >>> 16) & 0xffff) +
+                BASE - rem;
+        if(sum1 >= BASE) {
+            sum1 -= BASE;
+        }
+        if(sum1 >= BASE) {
+            sum1 -= BASE;
+        }
+        if(sum2 >= (BASE << 1)) {
+            sum2 -= (BASE << 1);
+        }
+        if(sum2 >= BASE) {
+            sum2 -= BASE;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    private static void chunk(DataOutputStream out, String type,
+                              byte[]... parts) throws IOException {
+        int length = 0;
+        for(byte[] part : parts) {
+            length += part == null ? 0 : part.length;
+        }
+        byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(name);
+        out.writeInt(length);
+        out.write(name);
+        for(byte[] part : parts) {
+            if(part != null) {
+                crc.update(part);
+                out.write(part);
+            }
+        }
+        out.writeInt((int) crc.getValue());
+    }
+}
@@ -0,0 +1,130 @@
+/*
+    Copyright 2017 Wira Mulia
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+package org.osumercury.badgemaker;
+
+import java.awt.geom.Rectangle2D;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+
+/**
+ * Places badges in rows on pages of a fixed size. Coordinates are in 1/72"
+ * points with the origin at the bottom left corner of the page, like PDF
+ * page coordinates. Badges have to be laid out in order from one thread
+ *
+ * @author wira
+ */
+public class PageLayout {
+    private final boolean mm;
+    private final float pageW;
+    private final float pageH;
+    private final float hMargin;
+    private final float vMargin;
+    private final float hSpacing;
+    private final float vSpacing;
+    private final float limitW;
+    private final float limitH;
+    private float offX;
+    private float offY;
+    private float largestH = -1;
+    private int pages = 0;
+    private boolean newPage = false;
+
+    public PageLayout(PDRectangle pageSize,
+                      float pageHMargin, float pageVMargin,
+                      float badgeHSpacing, float badgeVSpacing,
+                      int units, boolean landscape) {
+        mm = units == IO.UNIT_MM;
+
+        // set up our coordinate system
+        // pdf uses 1/72" coodinate units, we use this to convert our internal
+        // dimensions to pdf coordinates
+        hMargin = (mm ? 1/25.4f : 1.0f) * pageHMargin * 72.0f;
+        vMargin = (mm ? 1/25.4f : 1.0f) * pageVMargin * 72.0f;
+        hSpacing = (mm ? 1/25.4f : 1.0f) * badgeHSpacing * 72.0f;
+        vSpacing = (mm ? 1/25.4f : 1.0f) * badgeVSpacing * 72.0f;
+        offX = hMargin;
+        offY = vMargin;
+        pageW = landscape ? pageSize.getHeight() : pageSize.getWidth();
+        pageH = landscape ? pageSize.getWidth() : pageSize.getHeight();
+        limitW = pageW - 2*hMargin;
+        limitH = pageH - 2*vMargin;
+    }
+
+    public float getPageWidth() {
+        return pageW;
+    }
+
+    public float getPageHeight() {
+        return pageH;
+    }
+
+    /**
+     * @return number of pages started so far
+     */
+    public int getPageCount() {
+        return pages;
+    }
+
+    /**
+     * @return true if the last badge laid out started a new page
+     */
+    public boolean isNewPage() {
+        return newPage;
+    }
+
+    /**
+     * @return badge size in points
+     */
+    public float[] getSize(Badge badge) {
+        return new float[] {
+            (mm ? 1/25.4f : 1.0f) * badge.getWidth() * 72.0f,
+            (mm ? 1/25.4f : 1.0f) * badge.getHeight() * 72.0f
+        };
+    }
+
+    /**
+     * Lay out the next badge, starting a new page when it does not fit
+     *
+     * @return where the badge goes on the current page
+     */
+    public Rectangle2D.Float next(Badge badge) {
+        float[] size = getSize(badge);
+        float badgeW = size[0];
+        float badgeH = size[1];
+        newPage = pages == 0 ||
+                  ( // check if we need to be on a new page
+                    (offX + hSpacing + badgeW) > (limitW+hMargin) &&
+                    (offY + largestH + vSpacing + badgeH) > (limitH+vMargin)
+                  );
+        if(newPage) {
+            pages++;
+            // reset our position
+            offX = hMargin;
+            offY = vMargin;
+            largestH = -1;
+        }
+
+        largestH = badgeH > largestH ? badgeH : largestH;
+        if(offX + hSpacing + badgeW > (limitW+hMargin)) {
+            offX = hMargin;
+            offY += largestH + vSpacing;
+        }
+        offX += hSpacing;
+        Rectangle2D.Float box = new Rectangle2D.Float(offX, offY,
+                                                      badgeW, badgeH);
+        offX += badgeW;
+        return box;
+    }
+}
@@ -0,0 +1,430 @@
+/*
+    Copyright 2017 Wira Mulia
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+package org.osumercury.badgemaker;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import javax.imageio.ImageIO;
+import javax.swing.JPanel;
+
+/**
+ * Disk-backed cache of rendered badges. Entries are PNG files named after a
+ * hash of everything that affects the rendered image, so a re-run with mostly
+ * unchanged input only renders the badges that changed.
+ *
+ * @author wira
+ */
+public class RenderCache {
+    private static final String VERSION = "mercbm-render-1";
+
+    private static File dir = null;
+    private static long maxBytes = 512L * 1024 * 1024;
+    private static long totalBytes = -1;
+
+    private static final Map<BufferedImage, byte[]> imageHashes =
+            new WeakHashMap<>();
+    private static final Map<Renderer, byte[]> rendererHashes =
+            new WeakHashMap<>();
+
+    public static File getDefaultDirectory() {
+        return new File(System.getProperty("user.home") + File.separator +
+                        ".mercbm" + File.separator + "cache");
+    }
+
+    /**
+     * Set the cache directory, null disables the cache
+     */
+    public static synchronized void setDirectory(File d) {
+        dir = d;
+        totalBytes = -1;
+    }
+
+    public static synchronized File getDirectory() {
+        return dir;
+    }
+
+    public static void setMaxBytes(long bytes) {
+        maxBytes = bytes;
+    }
+
+    public static long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public static boolean isEnabled() {
+        return getDirectory() != null;
+    }
+
+    /**
+     * Render the badge, or load the result of an identical earlier render
+     */
+    public static BufferedImage render(Renderer r, Badge badge) {
+        return render(r, badge, null);
+    }
+
+    /**
+     * @param key fingerprint of the badge if the caller has it, or null
+     */
+    public static BufferedImage render(Renderer r, Badge badge, String key) {
+        r = unwrap(r);
+        File d = getDirectory();
+        if(d == null) {
+            return r.render(badge);
+        }
+        if(key == null) {
+            key = fingerprint(r, badge);
+        }
+        File entry = new File(d, key + ".png");
+        if(entry.isFile()) {
+            try {
+                BufferedImage img = ImageIO.read(entry);
+                if(img != null) {
+                    Log.d(1, "      render cache hit " + key);
+                    // the modification time doubles as the LRU timestamp
+                    entry.setLastModified(System.currentTimeMillis());
+                    return img;
+                }
+            } catch(IOException ioe) {
+                Log.d(0, "      unreadable render cache entry " + entry);
+            }
+        }
+        BufferedImage img = r.render(badge);
+        store(d, entry, img);
+        return img;
+    }
+
+    /**
+     * Wrap r so that its renders go through the cache, for outputs that call
+     * the renderer themselves
+     */
+    public static Renderer wrap(Renderer r) {
+        return r instanceof Cached ? r : new Cached(r);
+    }
+
+    private static Renderer unwrap(Renderer r) {
+        return r instanceof Cached ? ((Cached) r).r : r;
+    }
+
+    /**
+     * Whether an identical earlier render is available
+     */
+    public static boolean contains(Renderer r, Badge badge) {
+        return isEnabled() && contains(fingerprint(r, badge));
+    }
+
+    /**
+     * Whether a render with the fingerprint key is available
+     */
+    public static boolean contains(String key) {
+        File d = getDirectory();
+        return d != null && new File(d, key + ".png").isFile();
+    }
+    
+    private static void store(File d, File entry, BufferedImage img) {
+        try {
+            if(!d.isDirectory() && !d.mkdirs()) {
+                throw new IOException("unable to create " + d);
+            }
+            // write to a private file first so readers never see partial data
+            File tmp = File.createTempFile("entry", ".tmp", d);
+            PNGEncoder.write(img, tmp);
+            Files.move(tmp.toPath(), entry.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            added(d, entry.length());
+        } catch(IOException ioe) {
+            Log.err("Failed to store render cache entry " + entry +
+                    ": " + ioe);
+        }
+    }
+
+    private static synchronized void added(File d, long bytes) {
+        if(d != dir) {
+            return;
+        }
+        if(totalBytes < 0) {
+            totalBytes = 0;
+            for(File f : listEntries()) {
+                totalBytes += f.length();
+            }
+        } else {
+            totalBytes += bytes;
+        }
+        if(totalBytes <= maxBytes) {
+            return;
+        }
+        // evict least recently used entries down to 90% of the budget
+        File[] entries = listEntries();
+        Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+        for(File f : entries) {
+            if(totalBytes <= maxBytes * 9 / 10) {
+                break;
+            }
+            long size = f.length();
+            if(f.delete()) {
+                totalBytes -= size;
+                Log.d(1, "      render cache evicted " + f.getName());
+            }
+        }
+    }
+
+    private static File[] listEntries() {
+        File[] entries = dir.listFiles((f) -> f.getName().endsWith(".png"));
+        return entries == null ? new File[0] : entries;
+    }
+
+    /**
+     * Hash of the badge fields, the renderer class and its property values.
+     * Properties that name an existing file also include the file size and
+     * modification time so edited scripts and images are picked up
+     *
+     * @return hex encoded SHA-256 digest
+     */
+    public static String fingerprint(Renderer r, Badge badge) {
+        MessageDigest md = sha256();
+        md.update(VERSION.getBytes(StandardCharsets.UTF_8));
+        md.update(rendererHash(r));
+        update(md, badge.number);
+        update(md, badge.primaryText);
+        update(md, badge.secondaryText);
+        update(md, badge.backgroundColor);
+        update(md, badge.textBackgroundColor);
+        update(md, badge.textColor);
+        update(md, badge.getBackgroundScaling());
+        update(md, badge.getBackgroundVerticalPosition());
+        update(md, Float.floatToIntBits(badge.width));
+        update(md, Float.floatToIntBits(badge.proportion));
+        update(md, Float.floatToIntBits(badge.resolution));
+        update(md, badge.getExtraData().size());
+        for(String data : badge.getExtraData()) {
+            update(md, data);
+        }
+        ImageRef background = badge.getBackgroundRef();
+        if(background == null) {
+            update(md, -1);
+        } else if(background.getFile() != null) {
+            // hashing the file attributes avoids decoding it on a cache hit
+            File f = background.getFile();
+            update(md, f.getPath());
+            update(md, String.valueOf(f.length()));
+            update(md, String.valueOf(f.lastModified()));
+        } else {
+            BufferedImage img = badge.getBackground();
+            md.update(imageHash(img));
+        }
+        return hex(md.digest());
+    }
+
+    private static byte[] rendererHash(Renderer r) {
+        r = unwrap(r);
+        if(r.isSnapshot()) {
+            synchronized(rendererHashes) {
+                byte[] hash = rendererHashes.get(r);
+                if(hash == null) {
+                    hash = computeRendererHash(r);
+                    rendererHashes.put(r, hash);
+                }
+                return hash;
+            }
+        }
+        return computeRendererHash(r);
+    }
+
+    private static byte[] computeRendererHash(Renderer r) {
+        MessageDigest md = sha256();
+        update(md, r.getClass().getName());
+        for(Renderer.Property p : r.getValidProperties()) {
+            Object value = r.getProperty(p.getKey());
+            update(md, p.getKey());
+            update(md, String.valueOf(value));
+            if(value instanceof String) {
+                File f = new File((String) value);
+                if(f.isFile()) {
+                    update(md, String.valueOf(f.length()));
+                    update(md, String.valueOf(f.lastModified()));
+                }
+            }
+        }
+        for(File f : r.getInputFiles()) {
+            update(md, f.getPath());
+            update(md, String.valueOf(f.length()));
+            update(md, String.valueOf(f.lastModified()));
+        }
+        return md.digest();
+    }
+
+    /**
+     * @return hex encoded SHA-256 digest of the image pixels, memoized by
+     *         image identity
+     */
+    public static String fingerprint(BufferedImage img) {
+        return hex(imageHash(img));
+    }
+
+    /**
+     * @return hex encoded SHA-256 digest of the path, size and modification
+     *         time of f
+     */
+    public static String fingerprint(File f) {
+        MessageDigest md = sha256();
+        update(md, f.getPath());
+        update(md, String.valueOf(f.length()));
+        update(md, String.valueOf(f.lastModified()));
+        return hex(md.digest());
+    }
+
+    private static byte[] imageHash(BufferedImage img) {
+        synchronized(imageHashes) {
+            byte[] hash = imageHashes.get(img);
+            if(hash != null) {
+                return hash;
+            }
+        }
+        MessageDigest md = sha256();
+        int w = img.getWidth();
+        int h = img.getHeight();
+        int[] row = new int[w];
+        ByteBuffer buf = ByteBuffer.allocate(w * 4);
+        update(md, w);
+        update(md, h);
+        for(int y = 0; y < h; y++) {
+            img.getRGB(0, y, w, 1, row, 0, w);
+            buf.clear();
+            buf.asIntBuffer().put(row);
+            md.update(buf.array());
+        }
+        byte[] hash = md.digest();
+        synchronized(imageHashes) {
+            imageHashes.put(img, hash);
+        }
+        return hash;
+    }
+
+    private static void update(MessageDigest md, String str) {
+        byte[] data = str.getBytes(StandardCharsets.UTF_8);
+        update(md, data.length);
+        md.update(data);
+    }
+
+    private static void update(MessageDigest md, Color c) {
+        update(md, c.getRGB());
+    }
+
+    private static void update(MessageDigest md, int v) {
+        md.update(ByteBuffer.allocate(4).putInt(v).array());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] data) {
+        StringBuilder sb = new StringBuilder();
+        for(byte b : data) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    private static class Cached extends Renderer {
+        private final Renderer r;
+
+        public Cached(Renderer r) {
+            this.r = r;
+        }
+
+        @Override
+        public BufferedImage render(Badge badge) {
+            return RenderCache.render(r, badge);
+        }
+
+        @Override
+        public void renderTo(Graphics2D g, Badge badge) {
+            r.renderTo(g, badge);
+        }
+
+        @Override
+        public Renderer snapshot() {
+            Renderer copy = r.snapshot();
+            return copy == r ? this : new Cached(copy);
+        }
+
+        @Override
+        public boolean isSnapshot() {
+            return r.isSnapshot();
+        }
+
+        @Override
+        public Dimension getBackgroundSize(Badge badge) {
+            return r.getBackgroundSize(badge);
+        }
+
+        @Override
+        public List<File> getInputFiles() {
+            return r.getInputFiles();
+        }
+
+        @Override
+        public void reload() {
+            r.reload();
+        }
+
+        @Override
+        public String getDescription() {
+            return r.getDescription();
+        }
+
+        @Override
+        public Object getProperty(String key) {
+            return r.getProperty(key);
+        }
+
+        @Override
+        public void setProperty(String key, String value) {
+            r.setProperty(key, value);
+        }
+
+        @Override
+        public List<Property> getValidProperties() {
+            return r.getValidProperties();
+        }
+
+        @Override
+        public JPanel getRendererGUIControls() {
+            return r.getRendererGUIControls();
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/*
+    Copyright 2017 Wira Mulia
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+package org.osumercury.badgemaker;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Renders every badge once and hands the image to each output of the pass,
+ * e.g. a PDF, PNG files and JPG files at the same time. Badges with
+ * identical render inputs share one render, and encodings made by one
+ * output are reused by the others
+ *
+ * @author wira
+ */
+public class RenderPass {
+    private final List<Output> outputs = new ArrayList<>();
+
+    /**
+     * Receives the rendered badges of a pass
+     */
+    public interface Output {
+        /**
+         * @return false if the output is already up to date for the badge.
+         *         Badges that no output needs are not rendered and are
+         *         accepted without an image. Called concurrently from any
+         *         thread
+         */
+        public default boolean needsImage(Badge badge, String key) {
+            return true;
+        }
+
+        /**
+         * Work on a render worker before the badge is accepted, e.g.
+         * encoding. Called concurrently for different badges
+         */
+        public default void prepare(Rendered badge) throws Exception { }
+
+        /**
+         * Take the badge on the calling thread, in badge order. Returning
+         * false stops the pass
+         */
+        public boolean accept(Progress p, Rendered badge) throws Exception;
+
+        /**
+         * @return true if later badges with the same key can be output
+         *         without their image, e.g. because it is embedded already
+         */
+        public default boolean reuses(String key) {
+            return false;
+        }
+
+        /**
+         * @return false if the output has no use for transparency, so
+         *         badges can be rendered straight onto an opaque image
+         */
+        public default boolean needsAlpha() {
+            return true;
+        }
+
+        /**
+         * Called once after the last badge
+         *
+         * @param completed false if the pass was cancelled or stopped
+         */
+        public void finish(Progress p, boolean completed);
+    }
+
+    public RenderPass add(Output output) {
+        outputs.add(output);
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return outputs.isEmpty();
+    }
+
+    /**
+     * Render the badges and feed them to every output, then finish the
+     * outputs and complete the progress handle
+     *
+     * @param total number of badges for progress reporting, or -1 if unknown
+     * @return false if the pass was cancelled or stopped by an output
+     */
+    public boolean run(Progress p, Renderer r, Iterator<Badge> badges,
+                       int total) {
+        boolean alpha = RenderCache.isEnabled();
+        for(Output o : outputs) {
+            alpha |= o.needsAlpha();
+        }
+        final boolean opaque = !alpha;
+        // the first worker to claim a fingerprint renders it and the others
+        // wait for its result
+        Map<String, Render> renders = new ConcurrentHashMap<>();
+        // fingerprints worked out by the prefetch thread for the workers,
+        // badges compare by identity
+        Map<Badge, String> keys =
+                Collections.synchronizedMap(new WeakHashMap<>());
+        boolean completed = BatchRenderer.run(p, r, badges, total,
+                                              (job, badge) -> {
+            // cached renders never look at the background
+            String key = getKey(keys, job, badge);
+            return isNeeded(badge, key) && !RenderCache.contains(key);
+        }, (job, badge) -> {
+            String key = getKey(keys, job, badge);
+            if(!isNeeded(badge, key)) {
+                // every output is up to date, skip the render
+                return new Rendered(badge, key, Render.DONE);
+            }
+            Render render = new Render();
+            Render first = renders.putIfAbsent(key, render);
+            if(first == null) {
+                try {
+                    render.image.complete(opaque ?
+                            job.render(badge, BufferedImage.TYPE_INT_RGB) :
+                            RenderCache.render(job, badge, key));
+                } catch(Exception e) {
+                    render.image.completeExceptionally(e);
+                    throw e;
+                }
+            } else {
+                render = first;
+            }
+            Rendered rendered = new Rendered(badge, key, render);
+            for(Output o : outputs) {
+                o.prepare(rendered);
+            }
+            return rendered;
+        }, (badge, rendered) -> {
+            boolean reused = true;
+            for(Output o : outputs) {
+                try {
+                    if(!o.accept(p, rendered)) {
+                        return false;
+                    }
+                } catch(Exception e) {
+                    // one failing output does not hold up the others
+                    Log.err("Failed to output " + badge.number + "-" +
+                            badge.primaryText + ", reason: " + e);
+                }
+                reused &= o.reuses(rendered.key);
+            }
+            if(reused) {
+                // later duplicates only need the key
+                renders.put(rendered.key, Render.DONE);
+            } else {
+                // let the image go, later duplicates are rendered again
+                renders.remove(rendered.key, rendered.render);
+            }
+            return true;
+        });
+        for(Output o : outputs) {
+            o.finish(p, completed);
+        }
+        if(!completed) {
+            Log.d(0, "CANCELLED");
+        }
+        if(p != null) {
+            p.complete();
+        }
+        return completed;
+    }
+
+    /**
+     * Fingerprint the badge once, hashing in-memory backgrounds is costly
+     */
+    private static String getKey(Map<Badge, String> keys, Renderer job,
+                                 Badge badge) {
+        String key = keys.get(badge);
+        if(key == null) {
+            key = RenderCache.fingerprint(job, badge);
+            keys.put(badge, key);
+        }
+        return key;
+    }
+
+    private boolean isNeeded(Badge badge, String key) {
+        for(Output o : outputs) {
+            if(o.needsImage(badge, key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A badge of the pass and its render. Encodings are made once and shared
+     * by every output and every identical badge
+     */
+    public static class Rendered {
+        private final Badge badge;
+        private final String key;
+        private final Render render;
+
+        private Rendered(Badge badge, String key, Render render) {
+            this.badge = badge;
+            this.key = key;
+            this.render = render;
+        }
+
+        public Badge getBadge() {
+            return badge;
+        }
+
+        /**
+         * @return fingerprint of the render inputs, identical badges have
+         *         the same key
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return the rendered image, which must not be modified, or null if
+         *         every output reuses an earlier image with the same key or
+         *         no output needs it
+         */
+        public BufferedImage getImage() {
+            return render.image.join();
+        }
+
+        public boolean isOpaque() {
+            synchronized(render) {
+                if(render.opaque == null) {
+                    render.opaque = ImageTools.isOpaque(getImage());
+                }
+                return render.opaque;
+            }
+        }
+
+        public byte[] getPNG() throws IOException {
+            synchronized(render) {
+                if(render.png == null) {
+                    render.png = PNGEncoder.encode(getImage());
+                }
+                return render.png;
+            }
+        }
+
+        public byte[] getJPEG() throws IOException {
+            synchronized(render) {
+                if(render.jpeg == null) {
+                    render.jpeg = JPEGEncoder.encode(getImage());
+                }
+                return render.jpeg;
+            }
+        }
+    }
+
+    private static class Render {
+        private static final Render DONE = new Render();
+
+        private final CompletableFuture<BufferedImage> image =
+                new CompletableFuture<>();
+        private Boolean opaque;
+        private byte[] png;
+        private byte[] jpeg;
+
+        static {
+            DONE.image.complete(null);
+        }
+    }
+}
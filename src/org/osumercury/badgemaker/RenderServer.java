@@ -0,0 +1,429 @@
+/*
+    Copyright 2017 Wira Mulia
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+package org.osumercury.badgemaker;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+
+/**
+ * HTTP server on the loopback interface that renders badges on request, so
+ * other programs can print badges without starting a JVM for each one.
+ * POST rows to /render?format=png, jpg or pdf. The body is CSV with the
+ * input file columns, or JSON when the content type is application/json:
+ * an array of rows, each an array of the columns or an object with the
+ * members number, primaryText, secondaryText, background, backgroundColor,
+ * textBackgroundColor, textColor, backgroundScaling and extraData. PNG and
+ * JPG take one row, PDF lays out any number of rows on pages
+ *
+ * @author wira
+ */
+public class RenderServer {
+    public static final int MAX_REQUEST_BYTES = 1024 * 1024;
+
+    private static final String[] MEMBERS = {
+        "number", "primaryText", "secondaryText", "background",
+        "backgroundColor", "textBackgroundColor", "textColor",
+        "backgroundScaling"
+    };
+    private static final String[] MEMBER_DEFAULTS = {
+        "-1", "", "", "", "ffffff", "ffffff", "000000", "fit_width"
+    };
+
+    private final Renderer job;
+    private final float badgeWidth;
+    private final float badgeHeight;
+    private final int resolution;
+    private final File imageDir;
+    private PDRectangle pageSize = PDRectangle.LETTER;
+    private float pageHMargin = 0.5f;
+    private float pageVMargin = 0.5f;
+    private float badgeHSpacing = 0.2f;
+    private float badgeVSpacing = 0.2f;
+    private int units = IO.UNIT_INCHES;
+    private boolean landscape = false;
+    private boolean lossless = false;
+    private HttpServer server;
+    private ExecutorService pool;
+
+    /**
+     * @param r renderer whose current settings are used for every request
+     * @param imageDir directory background paths are relative to, requests
+     *                 can not name images outside of it
+     */
+    public RenderServer(Renderer r, float badgeWidth, float badgeHeight,
+                        int resolution, File imageDir) throws IOException {
+        this.job = r.snapshot();
+        this.badgeWidth = badgeWidth;
+        this.badgeHeight = badgeHeight;
+        this.resolution = resolution;
+        this.imageDir = imageDir.getCanonicalFile();
+    }
+
+    /**
+     * Set the page format of PDF responses, see IO.generatePDF
+     */
+    public void setPDFLayout(PDRectangle pageSize,
+                             float pageHMargin, float pageVMargin,
+                             float badgeHSpacing, float badgeVSpacing,
+                             int units, boolean landscape,
+                             boolean lossless) {
+        this.pageSize = pageSize;
+        this.pageHMargin = pageHMargin;
+        this.pageVMargin = pageVMargin;
+        this.badgeHSpacing = badgeHSpacing;
+        this.badgeVSpacing = badgeVSpacing;
+        this.units = units;
+        this.landscape = landscape;
+        this.lossless = lossless;
+    }
+
+    /**
+     * Warm up the renderer and start serving on a loopback port. Requests
+     * are handled by a pool of BatchRenderer.getThreads() workers
+     */
+    public void start(int port) throws IOException {
+        warmUp();
+        server = HttpServer.create(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/render", this::handle);
+        pool = Executors.newFixedThreadPool(BatchRenderer.getThreads(),
+                (runnable) -> {
+            Thread t = new Thread(runnable, "mercbm-serve");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(pool);
+        server.start();
+        Log.d(0, "Serving on http://" +
+                 server.getAddress().getAddress().getHostAddress() + ":" +
+                 server.getAddress().getPort() + "/render");
+    }
+
+    public void stop() {
+        if(server != null) {
+            server.stop(0);
+            pool.shutdownNow();
+            server = null;
+        }
+    }
+
+    /**
+     * Render and encode a sample badge so the first request does not pay
+     * for class loading, font setup and JIT compilation
+     */
+    private void warmUp() {
+        long start = System.currentTimeMillis();
+        try {
+            List<String> values = new ArrayList<>(
+                    Arrays.asList(MEMBER_DEFAULTS));
+            values.set(1, "Sample");
+            Badge sample = IO.parseRow(values, 1, imageDir.getPath(),
+                                       badgeWidth, badgeHeight, resolution);
+            // straight to the renderer, a render cache hit warms nothing
+            BufferedImage img;
+            if(job.isSnapshot()) {
+                img = job.render(sample);
+            } else {
+                synchronized(job) {
+                    img = job.render(sample);
+                }
+            }
+            PNGEncoder.encode(img);
+            JPEGEncoder.encode(img);
+            Log.d(0, "Renderer warmed up in " +
+                     (System.currentTimeMillis() - start) + " ms");
+        } catch(Exception e) {
+            Log.err("Failed to warm up the renderer: " + e);
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if(!"POST".equals(exchange.getRequestMethod())) {
+                throw new RequestException(405,
+                        "POST badge rows to /render");
+            }
+            String format = getFormat(exchange);
+            String body = readBody(exchange);
+            String type = exchange.getRequestHeaders()
+                                  .getFirst("Content-Type");
+            List<List<String>> rows =
+                    type != null && type.startsWith("application/json") ?
+                    parseJSON(body) : parseCSV(body);
+            List<Badge> badges = new ArrayList<>();
+            for(int i = 0; i < rows.size(); i++) {
+                badges.add(parseRow(rows.get(i), i + 1));
+            }
+            if(badges.isEmpty()) {
+                throw new RequestException(400, "no rows in request");
+            }
+            long start = System.currentTimeMillis();
+            byte[] data;
+            String contentType;
+            switch(format) {
+                case "pdf":
+                    data = renderPDF(badges);
+                    contentType = "application/pdf";
+                    break;
+                default:
+                    if(badges.size() > 1) {
+                        throw new RequestException(400, format +
+                                " takes one row, use pdf for several");
+                    }
+                    boolean png = format.equals("png");
+                    BufferedImage img = render(badges.get(0), png);
+                    data = png ? PNGEncoder.encode(img) :
+                                 JPEGEncoder.encode(img);
+                    contentType = png ? "image/png" : "image/jpeg";
+            }
+            Log.d(0, "    " + format + " " + badges.size() + " badge(s) in " +
+                     (System.currentTimeMillis() - start) + " ms");
+            respond(exchange, 200, contentType, data);
+        } catch(RequestException re) {
+            respond(exchange, re.status, "text/plain; charset=utf-8",
+                    (re.getMessage() + "\n").getBytes(StandardCharsets.UTF_8));
+        } catch(Exception e) {
+            Log.err("Failed to handle request: " + e);
+            respond(exchange, 500, "text/plain; charset=utf-8",
+                    ("render failed: " + e + "\n")
+                            .getBytes(StandardCharsets.UTF_8));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static String getFormat(HttpExchange exchange)
+            throws RequestException {
+        String query = exchange.getRequestURI().getRawQuery();
+        String format = "png";
+        if(query != null) {
+            for(String param : query.split("&")) {
+                if(param.startsWith("format=")) {
+                    format = param.substring(7).toLowerCase();
+                }
+            }
+        }
+        switch(format) {
+            case "jpeg":
+                return "jpg";
+            case "png":
+            case "jpg":
+            case "pdf":
+                return format;
+            default:
+                throw new RequestException(400, "unknown format " + format +
+                                           ", use png, jpg or pdf");
+        }
+    }
+
+    private static String readBody(HttpExchange exchange)
+            throws IOException, RequestException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        InputStream in = exchange.getRequestBody();
+        int n;
+        while((n = in.read(buf)) > 0) {
+            if(out.size() + n > MAX_REQUEST_BYTES) {
+                throw new RequestException(413, "request larger than " +
+                                           MAX_REQUEST_BYTES + " bytes");
+            }
+            out.write(buf, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static List<List<String>> parseCSV(String body)
+            throws IOException, RequestException {
+        List<List<String>> rows = new ArrayList<>();
+        try(CSVParser parser = CSVParser.parse(body, CSVFormat.DEFAULT)) {
+            for(CSVRecord record : parser) {
+                List<String> values = new ArrayList<>(record.size());
+                for(int i = 0; i < record.size(); i++) {
+                    values.add(record.get(i));
+                }
+                rows.add(values);
+            }
+        } catch(IllegalStateException ise) {
+            throw new RequestException(400, "invalid CSV: " +
+                                       ise.getMessage());
+        }
+        return rows;
+    }
+
+    private static List<List<String>> parseJSON(String body)
+            throws RequestException {
+        Object doc;
+        try {
+            doc = JSONReader.read(body);
+        } catch(IllegalArgumentException iae) {
+            throw new RequestException(400, "invalid JSON: " +
+                                       iae.getMessage());
+        }
+        List<?> items = doc instanceof List ? (List<?>) doc :
+                        Arrays.asList(doc);
+        // a single row given as an array of columns
+        if(!items.isEmpty() && !(items.get(0) instanceof List) &&
+           !(items.get(0) instanceof Map)) {
+            items = Arrays.asList(items);
+        }
+        List<List<String>> rows = new ArrayList<>();
+        for(Object item : items) {
+            if(item instanceof List) {
+                List<String> values = new ArrayList<>();
+                for(Object value : (List<?>) item) {
+                    values.add(value == null ? "" : String.valueOf(value));
+                }
+                rows.add(values);
+            } else if(item instanceof Map) {
+                rows.add(toColumns((Map<?, ?>) item));
+            } else {
+                throw new RequestException(400,
+                        "rows must be arrays or objects");
+            }
+        }
+        return rows;
+    }
+
+    private static List<String> toColumns(Map<?, ?> row)
+            throws RequestException {
+        List<String> values = new ArrayList<>();
+        for(int i = 0; i < MEMBERS.length; i++) {
+            Object value = row.get(MEMBERS[i]);
+            values.add(value == null ? MEMBER_DEFAULTS[i] :
+                                       String.valueOf(value));
+        }
+        Object extra = row.get("extraData");
+        if(extra instanceof List) {
+            for(Object value : (List<?>) extra) {
+                values.add(value == null ? "" : String.valueOf(value));
+            }
+        } else if(extra != null) {
+            throw new RequestException(400, "extraData must be an array");
+        }
+        return values;
+    }
+
+    private Badge parseRow(List<String> values, int rowNum)
+            throws RequestException {
+        if(values.size() > 3 && !values.get(3).trim().equals("")) {
+            // only images under the image directory can be named
+            try {
+                File f = new File(imageDir, values.get(3).trim())
+                        .getCanonicalFile();
+                if(!f.toPath().startsWith(imageDir.toPath()) ||
+                   !f.isFile()) {
+                    throw new RequestException(400, "row " + rowNum +
+                            ": no image " + values.get(3));
+                }
+            } catch(IOException ioe) {
+                throw new RequestException(400, "row " + rowNum +
+                        ": no image " + values.get(3));
+            }
+        }
+        try {
+            return IO.parseRow(values, rowNum, imageDir.getPath(),
+                               badgeWidth, badgeHeight, resolution);
+        } catch(Exception e) {
+            throw new RequestException(400, "row " + rowNum + ": " + e);
+        }
+    }
+
+    /**
+     * Render a badge on the calling worker, through the render cache so
+     * repeated requests for the same badge are not rendered again
+     */
+    private BufferedImage render(Badge badge, boolean alpha) {
+        // renderers without snapshot support are not safe to share
+        if(job.isSnapshot()) {
+            return render(job, badge, alpha);
+        }
+        synchronized(job) {
+            return render(job, badge, alpha);
+        }
+    }
+
+    private static BufferedImage render(Renderer job, Badge badge,
+                                        boolean alpha) {
+        if(alpha || RenderCache.isEnabled()) {
+            return RenderCache.render(job, badge);
+        }
+        return job.render(badge, BufferedImage.TYPE_INT_RGB);
+    }
+
+    private byte[] renderPDF(List<Badge> badges) throws IOException {
+        File pdf = File.createTempFile("mercbm-", ".pdf",
+                                       IO.getPDFScratchDirectory());
+        try {
+            RenderPass pass = new RenderPass().add(IO.pdfOutput(pageSize,
+                    pageHMargin, pageVMargin, badgeHSpacing, badgeVSpacing,
+                    units, landscape, lossless, pdf));
+            if(job.isSnapshot()) {
+                pass.run(null, job, badges.iterator(), badges.size());
+            } else {
+                synchronized(job) {
+                    pass.run(null, job, badges.iterator(), badges.size());
+                }
+            }
+            if(pdf.length() == 0) {
+                throw new IOException("the PDF was not written");
+            }
+            return Files.readAllBytes(pdf.toPath());
+        } finally {
+            pdf.delete();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status,
+                                String contentType, byte[] data)
+            throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, data.length);
+        try(OutputStream out = exchange.getResponseBody()) {
+            out.write(data);
+        }
+    }
+
+    private static class RequestException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        private RequestException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+}
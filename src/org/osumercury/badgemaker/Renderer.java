@@ -16,8 +16,13 @@
 package org.osumercury.badgemaker;
 
 import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
@@ -32,6 +37,91 @@ public abstract class Renderer {
     
     public abstract BufferedImage render(Badge badge);
     
+    /**
+     * Draw the badge onto g in badge pixel coordinates, from (0, 0) to the
+     * badge pixel dimension. The caller sets up the transform and clip that
+     * place the badge on its surface, e.g. a page, a scaled preview or a
+     * vector document. Implementations draw relative to the current
+     * transform, only narrow the clip and leave the state of g as they
+     * found it, drawing through g.create() is the easy way to do so.
+     * The default draws the result of render, renderers that draw shapes and
+     * text directly override this to skip the intermediate image
+     */
+    public void renderTo(Graphics2D g, Badge badge) {
+        g.drawImage(render(badge), 0, 0, null);
+    }
+    
+    /**
+     * Render the badge onto a new image of the given BufferedImage type, e.g.
+     * TYPE_INT_RGB or TYPE_3BYTE_BGR for outputs that have no use for the
+     * alpha channel. Transparent areas come out black, as when the alpha
+     * channel of a rendered image is discarded
+     */
+    public BufferedImage render(Badge badge, int imageType) {
+        Dimension d = badge.getPixelDimension();
+        BufferedImage img = new BufferedImage(d.width, d.height, imageType);
+        Graphics2D g = img.createGraphics();
+        renderTo(g, badge);
+        g.dispose();
+        return img;
+    }
+
+    /**
+     * @return true if badge pixels do not map 1:1 to pixels on g, because it
+     *         is scaled or records vectors. Raster shortcuts such as
+     *         pre-rendered text or pre-scaled images lose quality there
+     */
+    public static boolean isResampled(Graphics2D g) {
+        int type = g.getTransform().getType();
+        return VectorGraphics2D.isVector(g) ||
+               (type & ~AffineTransform.TYPE_TRANSLATION) != 0;
+    }
+    
+    /**
+     * Get a copy of this renderer with its current settings frozen. The copy
+     * does not change when properties of this renderer are modified, so it
+     * can be shared by concurrent renders while the settings are being edited.
+     * Renderers that do not override this return themselves and are only
+     * rendered from a single thread
+     * 
+     * @return frozen copy of this renderer
+     */
+    public Renderer snapshot() {
+        return this;
+    }
+    
+    /**
+     * @return true if this renderer is a frozen copy made by snapshot()
+     */
+    public boolean isSnapshot() {
+        return false;
+    }
+    
+    /**
+     * Largest size the badge background is drawn at, used to decode large
+     * photos at a reduced resolution. A dimension of zero is not
+     * constrained and null means full resolution. The default is the badge
+     * size, which covers any background that is scaled uniformly to fit
+     * the badge in at least one dimension
+     */
+    public Dimension getBackgroundSize(Badge badge) {
+        return badge.getPixelDimension();
+    }
+    
+    /**
+     * Files other than badge backgrounds that renders read, e.g. a script and
+     * the images it draws. They are part of the render cache fingerprint and
+     * are watched for changes by watch mode
+     */
+    public List<File> getInputFiles() {
+        return Collections.emptyList();
+    }
+    
+    /**
+     * Read the input files again after they changed
+     */
+    public void reload() { }
+    
     public abstract String getDescription();
     
     protected final void addProperty(String key, int type, String description) {
@@ -0,0 +1,303 @@
+/*
+    Copyright 2017 Wira Mulia
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+package org.osumercury.badgemaker;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.PathIterator;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Vector graphics that build an SVG document. Shapes and text become path
+ * elements, images are written once to a shared directory and referenced
+ * by file name. Each instance builds one document and is used from a single
+ * thread, the image store can be shared
+ *
+ * @author wira
+ */
+public class SVGGraphics2D extends VectorGraphics2D {
+    private final Images images;
+    private final StringBuilder body;
+    private final int[] clipCount;
+    private Shape lastClip = null;
+    private String lastClipId = null;
+
+    /**
+     * @param d document size, one user unit per pixel
+     */
+    public SVGGraphics2D(Images images, Dimension d) {
+        super(new AffineTransform(), null);
+        this.images = images;
+        body = new StringBuilder();
+        clipCount = new int[1];
+        body.append("<svg xmlns=\"http://www.w3.org/2000/svg\" ")
+            .append("xmlns:xlink=\"http://www.w3.org/1999/xlink\" ")
+            .append("width=\"").append(d.width).append("\" ")
+            .append("height=\"").append(d.height).append("\" ")
+            .append("viewBox=\"0 0 ").append(d.width).append(' ')
+            .append(d.height).append("\">\n");
+    }
+
+    private SVGGraphics2D(SVGGraphics2D g) {
+        super(g.getTransform(), g.getDeviceClip());
+        images = g.images;
+        body = g.body;
+        clipCount = g.clipCount;
+    }
+
+    @Override
+    protected VectorGraphics2D createSibling() {
+        return new SVGGraphics2D(this);
+    }
+
+    /**
+     * @return the finished document
+     */
+    public String toSVG() {
+        return body.toString() + "</svg>\n";
+    }
+
+    @Override
+    protected void fillShape(Shape s, Color c) {
+        String clipId = defineClip();
+        body.append("<path d=\"");
+        boolean evenOdd = append(body, s);
+        body.append("\" fill=\"").append(String.format("#%06x",
+                                                       c.getRGB() & 0xffffff))
+            .append('"');
+        if(c.getAlpha() < 255) {
+            body.append(" fill-opacity=\"").append(num(c.getAlpha() / 255.0))
+                .append('"');
+        }
+        if(evenOdd) {
+            body.append(" fill-rule=\"evenodd\"");
+        }
+        end(clipId);
+    }
+
+    @Override
+    protected void placeImage(BufferedImage img, AffineTransform at,
+                              float alpha) {
+        String href = images.add(img);
+        String clipId = defineClip();
+        body.append("<image width=\"").append(img.getWidth())
+            .append("\" height=\"").append(img.getHeight())
+            .append("\" preserveAspectRatio=\"none\" transform=\"matrix(")
+            .append(num(at.getScaleX(), 6)).append(' ')
+            .append(num(at.getShearY(), 6)).append(' ')
+            .append(num(at.getShearX(), 6)).append(' ')
+            .append(num(at.getScaleY(), 6)).append(' ')
+            .append(num(at.getTranslateX())).append(' ')
+            .append(num(at.getTranslateY())).append(")\" xlink:href=\"")
+            .append(href).append('"');
+        if(alpha < 1) {
+            body.append(" opacity=\"").append(num(alpha)).append('"');
+        }
+        end(clipId);
+    }
+
+    /**
+     * Write a clip path element if the clip changed since the last one
+     *
+     * @return id of the current clip path, or null if there is no clip
+     */
+    private String defineClip() {
+        Shape clip = getDeviceClip();
+        if(clip == null) {
+            return null;
+        }
+        if(clip != lastClip) {
+            lastClip = clip;
+            lastClipId = "c" + clipCount[0]++;
+            body.append("<clipPath id=\"").append(lastClipId)
+                .append("\"><path d=\"");
+            if(append(body, clip)) {
+                body.append("\" clip-rule=\"evenodd");
+            }
+            body.append("\"/></clipPath>\n");
+        }
+        return lastClipId;
+    }
+
+    private void end(String clipId) {
+        if(clipId != null) {
+            body.append(" clip-path=\"url(#").append(clipId).append(")\"");
+        }
+        body.append("/>\n");
+    }
+
+    /**
+     * Append the path data of s
+     *
+     * @return true if the path uses the even-odd winding rule
+     */
+    private static boolean append(StringBuilder out, Shape s) {
+        PathIterator it = s.getPathIterator(null);
+        double[] c = new double[6];
+        while(!it.isDone()) {
+            switch(it.currentSegment(c)) {
+                case PathIterator.SEG_MOVETO:
+                    out.append('M').append(num(c[0])).append(' ')
+                       .append(num(c[1]));
+                    break;
+                case PathIterator.SEG_LINETO:
+                    out.append('L').append(num(c[0])).append(' ')
+                       .append(num(c[1]));
+                    break;
+                case PathIterator.SEG_QUADTO:
+                    out.append('Q').append(num(c[0])).append(' ')
+                       .append(num(c[1])).append(' ')
+                       .append(num(c[2])).append(' ')
+                       .append(num(c[3]));
+                    break;
+                case PathIterator.SEG_CUBICTO:
+                    out.append('C').append(num(c[0])).append(' ')
+                       .append(num(c[1])).append(' ')
+                       .append(num(c[2])).append(' ')
+                       .append(num(c[3])).append(' ')
+                       .append(num(c[4])).append(' ')
+                       .append(num(c[5]));
+                    break;
+                case PathIterator.SEG_CLOSE:
+                    out.append('Z');
+                    break;
+            }
+            it.next();
+        }
+        return it.getWindingRule() == PathIterator.WIND_EVEN_ODD;
+    }
+
+    /**
+     * Format a coordinate with at most two decimals
+     */
+    private static String num(double v) {
+        return num(v, 2);
+    }
+
+    private static String num(double v, int decimals) {
+        return BigDecimal.valueOf(v).setScale(decimals, RoundingMode.HALF_UP)
+                         .stripTrailingZeros().toPlainString();
+    }
+
+    @Override
+    public String toString() {
+        return "SVGGraphics2D";
+    }
+
+    /**
+     * Image files shared by the documents in a directory. Images decoded
+     * from a file are named by the file, so every decode of one source
+     * shares a file holding the largest of them. Other images are named by
+     * a hash of their pixels. Files left by an earlier run are reused
+     */
+    public static class Images {
+        public static final String DIRECTORY = "images";
+
+        private final File dir;
+        private final boolean lossless;
+        // file name to the width of the image written to it
+        private final Map<String, Integer> files = new ConcurrentHashMap<>();
+
+        /**
+         * @param dir directory the documents are saved in
+         * @param lossless save opaque images as PNG instead of JPEG
+         */
+        public Images(File dir, boolean lossless) {
+            this.dir = new File(dir, DIRECTORY);
+            this.lossless = lossless;
+        }
+
+        /**
+         * @return path of the image file relative to the documents
+         */
+        private String add(BufferedImage img) {
+            File source = ImageTools.getSource(img);
+            boolean png = lossless || img.getColorModel().hasAlpha();
+            String name = (source != null ? RenderCache.fingerprint(source) :
+                           RenderCache.fingerprint(img)) +
+                          (png ? ".png" : ".jpg");
+            // the image element scales the file to where it is placed, so a
+            // larger decode can replace a smaller one documents refer to
+            files.compute(name, (n, width) -> {
+                if(width != null && width >= img.getWidth()) {
+                    return width;
+                }
+                File f = new File(dir, n);
+                if(width == null) {
+                    int existing = getWidth(f);
+                    if(existing >= img.getWidth()) {
+                        return existing;
+                    }
+                }
+                try {
+                    write(img, f, png);
+                } catch(IOException ioe) {
+                    throw new UncheckedIOException(ioe);
+                }
+                return img.getWidth();
+            });
+            return DIRECTORY + "/" + name;
+        }
+
+        private void write(BufferedImage img, File f, boolean png)
+                throws IOException {
+            if(!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("unable to create " + dir);
+            }
+            Log.d(0, "    Saving to " + f.getAbsolutePath());
+            // write to a private file first so an interrupted run never
+            // leaves a partial image behind
+            File tmp = File.createTempFile("image", ".tmp", dir);
+            try {
+                if(png) {
+                    PNGEncoder.write(img, tmp);
+                } else {
+                    JPEGEncoder.write(img, tmp);
+                }
+                Files.move(tmp.toPath(), f.toPath(),
+                           StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmp.toPath());
+            }
+        }
+
+        /**
+         * @return width of the image in f, or 0 if it is missing or
+         *         unreadable
+         */
+        private static int getWidth(File f) {
+            if(!f.isFile()) {
+                return 0;
+            }
+            try {
+                return ImageTools.getImageSize(f).width;
+            } catch(IOException ioe) {
+                return 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+    Copyright 2017 Wira Mulia
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+package org.osumercury.badgemaker;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.font.FontRenderContext;
+import java.awt.font.LineMetrics;
+import java.awt.image.BufferedImage;
+
+/**
+ * A line of text sized to fit a box. Raster sprites come from the
+ * ImageTools text cache, direct sprites draw the glyphs onto the target
+ * graphics at the final font size
+ *
+ * @author wira
+ */
+public abstract class TextSprite {
+    public static final String MODE_RASTER = "raster";
+    public static final String MODE_DIRECT = "direct";
+
+    private static final FontRenderContext FRC =
+            new FontRenderContext(null, true, true);
+
+    protected int width;
+    protected int height;
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Draw the text with its top left corner at (x, y)
+     */
+    public abstract void draw(Graphics2D g, int x, int y);
+
+    /**
+     * Create a sprite for the string that is the given height, or less if
+     * it would otherwise be wider than widthLimit
+     *
+     * @param g graphics the sprite is drawn on, raster sprites are measured
+     *          with its text hints. Null measures without hints
+     * @param direct draw glyphs directly instead of a scaled raster
+     */
+    public static TextSprite create(Graphics2D g, boolean direct, Font f,
+                                    String str, Color color, int height,
+                                    int widthLimit) {
+        if(direct) {
+            return new Direct(f, str, color, height, widthLimit);
+        }
+        return new Raster(ImageTools.drawString(f, str, color, height,
+                                                widthLimit, g));
+    }
+
+    public static boolean isDirect(String mode) {
+        return MODE_DIRECT.equals(mode);
+    }
+
+    private static class Raster extends TextSprite {
+        private final BufferedImage img;
+
+        public Raster(BufferedImage img) {
+            this.img = img;
+            width = img.getWidth();
+            height = img.getHeight();
+        }
+
+        @Override
+        public void draw(Graphics2D g, int x, int y) {
+            g.drawImage(img, x, y, null);
+        }
+    }
+
+    private static class Direct extends TextSprite {
+        private final Font font;
+        private final String str;
+        private final Color color;
+        private final float ascent;
+
+        public Direct(Font f, String str, Color color, int height,
+                      int widthLimit) {
+            // same box as the raster path: line height by string advance
+            LineMetrics lm = f.getLineMetrics(str, FRC);
+            float lineHeight = lm.getAscent() + lm.getDescent() +
+                               lm.getLeading();
+            float advance = (float) f.getStringBounds(str, FRC).getWidth();
+            float scale = height / lineHeight;
+            if(advance * scale > widthLimit) {
+                scale = widthLimit / advance;
+            }
+            this.font = f.deriveFont(f.getSize2D() * scale);
+            this.str = str;
+            this.color = color;
+            this.ascent = lm.getAscent() * scale;
+            this.width = Math.max(1, (int)(advance * scale));
+            this.height = Math.max(1, (int)(lineHeight * scale));
+        }
+
+        @Override
+        public void draw(Graphics2D g, int x, int y) {
+            Font oldFont = g.getFont();
+            Color oldColor = g.getColor();
+            Object oldAA = g.getRenderingHint(
+                    RenderingHints.KEY_TEXT_ANTIALIASING);
+            Object oldFM = g.getRenderingHint(
+                    RenderingHints.KEY_FRACTIONALMETRICS);
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                               RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS,
+                               RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+            g.setFont(font);
+            g.setColor(color);
+            g.drawString(str, (float) x, y + ascent);
+            g.setFont(oldFont);
+            g.setColor(oldColor);
+            if(oldAA != null) {
+                g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                                   oldAA);
+            }
+            if(oldFM != null) {
+                g.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS,
+                                   oldFM);
+            }
+        }
+    }
+}
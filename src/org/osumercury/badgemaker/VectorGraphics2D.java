@@ -0,0 +1,708 @@
+/*
+    Copyright 2017 Wira Mulia
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+package org.osumercury.badgemaker;
+
+import java.awt.AlphaComposite;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Composite;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Image;
+import java.awt.Paint;
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.Stroke;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.font.TextLayout;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Arc2D;
+import java.awt.geom.Area;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Path2D;
+import java.awt.geom.RoundRectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.BufferedImageOp;
+import java.awt.image.ImageObserver;
+import java.awt.image.RenderedImage;
+import java.awt.image.renderable.RenderableImage;
+import java.text.AttributedCharacterIterator;
+import java.util.Map;
+
+/**
+ * Graphics that records drawing as resolution independent output instead of
+ * pixels. Every operation is reduced to filling a shape with a color or
+ * placing an image, both in device coordinates, which subclasses write out
+ * in their format. Strokes are filled as outlines. Plain strings are offered
+ * to subclasses as text and filled as glyph outlines when they decline.
+ * Only SRC_OVER compositing is supported and paints other than plain colors
+ * are rasterized
+ *
+ * @author wira
+ */
+public abstract class VectorGraphics2D extends Graphics2D {
+    // font metrics and device configuration come from a raster graphics
+    private static final Graphics2D SCRATCH =
+            new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).createGraphics();
+
+    private AffineTransform transform;
+    private Shape clip;
+    private Paint paint = Color.BLACK;
+    private Color color = Color.BLACK;
+    private Color background = Color.WHITE;
+    private Font font = new Font(Font.SANS_SERIF, Font.PLAIN, 12);
+    private Stroke stroke = new BasicStroke();
+    private Composite composite = AlphaComposite.SrcOver;
+    private RenderingHints hints = new RenderingHints(null);
+
+    /**
+     * @param transform maps user space to device coordinates
+     * @param clip initial clip in device coordinates, or null
+     */
+    protected VectorGraphics2D(AffineTransform transform, Shape clip) {
+        this.transform = new AffineTransform(transform);
+        this.clip = clip;
+    }
+
+    /**
+     * @return true if g records vector output, renderers use this to skip
+     *         raster shortcuts such as pre-rendered text
+     */
+    public static boolean isVector(Graphics2D g) {
+        return g instanceof VectorGraphics2D;
+    }
+
+    /**
+     * Fill a shape given in device coordinates
+     */
+    protected abstract void fillShape(Shape s, Color c);
+
+    /**
+     * Place an image, at maps image pixels to device coordinates
+     */
+    protected abstract void placeImage(BufferedImage img, AffineTransform at,
+                                       float alpha);
+
+    /**
+     * Draw a string as text instead of outlines, at maps the font's user
+     * space with the baseline origin at 0, 0 to device coordinates
+     *
+     * @return false to have the string filled as glyph outlines
+     */
+    protected boolean drawText(String str, Font font, AffineTransform at,
+                               Color c) {
+        return false;
+    }
+
+    /**
+     * @return a graphics writing to the same output, state is copied by
+     *         the caller
+     */
+    protected abstract VectorGraphics2D createSibling();
+
+    /**
+     * @return current clip in device coordinates, or null
+     */
+    protected Shape getDeviceClip() {
+        return clip;
+    }
+
+    @Override
+    public Graphics create() {
+        VectorGraphics2D g = createSibling();
+        g.transform = new AffineTransform(transform);
+        g.clip = clip;
+        g.paint = paint;
+        g.color = color;
+        g.background = background;
+        g.font = font;
+        g.stroke = stroke;
+        g.composite = composite;
+        g.hints = (RenderingHints) hints.clone();
+        return g;
+    }
+
+    @Override
+    public void dispose() {
+        // nothing to release, output is owned by the creator
+    }
+
+    private float getAlpha() {
+        if(composite instanceof AlphaComposite) {
+            return ((AlphaComposite) composite).getAlpha();
+        }
+        return 1.0f;
+    }
+
+    @Override
+    public void fill(Shape s) {
+        if(!(paint instanceof Color)) {
+            fillPaint(s);
+            return;
+        }
+        Color c = (Color) paint;
+        int a = Math.round(c.getAlpha() * getAlpha());
+        if(a <= 0) {
+            return;
+        }
+        fillShape(transform.createTransformedShape(s),
+                  new Color(c.getRed(), c.getGreen(), c.getBlue(), a));
+    }
+
+    /**
+     * Rasterize the shape at one pixel per user unit, for gradient and
+     * texture paints
+     */
+    private void fillPaint(Shape s) {
+        Rectangle r = s.getBounds();
+        if(r.width <= 0 || r.height <= 0) {
+            return;
+        }
+        BufferedImage img = new BufferedImage(r.width, r.height,
+                                              BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = img.createGraphics();
+        g.setRenderingHints(hints);
+        g.translate(-r.x, -r.y);
+        g.setPaint(paint);
+        g.fill(s);
+        g.dispose();
+        AffineTransform at = new AffineTransform(transform);
+        at.translate(r.x, r.y);
+        placeImage(img, at, getAlpha());
+    }
+
+    @Override
+    public void draw(Shape s) {
+        fill(stroke.createStrokedShape(s));
+    }
+
+    @Override
+    public boolean hit(Rectangle rect, Shape s, boolean onStroke) {
+        if(onStroke) {
+            s = stroke.createStrokedShape(s);
+        }
+        return transform.createTransformedShape(s).intersects(rect);
+    }
+
+    @Override
+    public void drawLine(int x1, int y1, int x2, int y2) {
+        draw(new Line2D.Float(x1, y1, x2, y2));
+    }
+
+    @Override
+    public void fillRect(int x, int y, int width, int height) {
+        fill(new Rectangle(x, y, width, height));
+    }
+
+    @Override
+    public void clearRect(int x, int y, int width, int height) {
+        Paint p = paint;
+        Composite c = composite;
+        paint = background;
+        composite = AlphaComposite.SrcOver;
+        fillRect(x, y, width, height);
+        paint = p;
+        composite = c;
+    }
+
+    @Override
+    public void drawRoundRect(int x, int y, int width, int height,
+                              int arcWidth, int arcHeight) {
+        draw(new RoundRectangle2D.Float(x, y, width, height,
+                                        arcWidth, arcHeight));
+    }
+
+    @Override
+    public void fillRoundRect(int x, int y, int width, int height,
+                              int arcWidth, int arcHeight) {
+        fill(new RoundRectangle2D.Float(x, y, width, height,
+                                        arcWidth, arcHeight));
+    }
+
+    @Override
+    public void drawOval(int x, int y, int width, int height) {
+        draw(new Ellipse2D.Float(x, y, width, height));
+    }
+
+    @Override
+    public void fillOval(int x, int y, int width, int height) {
+        fill(new Ellipse2D.Float(x, y, width, height));
+    }
+
+    @Override
+    public void drawArc(int x, int y, int width, int height,
+                        int startAngle, int arcAngle) {
+        draw(new Arc2D.Float(x, y, width, height, startAngle, arcAngle,
+                             Arc2D.OPEN));
+    }
+
+    @Override
+    public void fillArc(int x, int y, int width, int height,
+                        int startAngle, int arcAngle) {
+        fill(new Arc2D.Float(x, y, width, height, startAngle, arcAngle,
+                             Arc2D.PIE));
+    }
+
+    @Override
+    public void drawPolyline(int[] xPoints, int[] yPoints, int nPoints) {
+        if(nPoints < 2) {
+            return;
+        }
+        Path2D.Float path = new Path2D.Float();
+        path.moveTo(xPoints[0], yPoints[0]);
+        for(int i = 1; i < nPoints; i++) {
+            path.lineTo(xPoints[i], yPoints[i]);
+        }
+        draw(path);
+    }
+
+    @Override
+    public void drawPolygon(int[] xPoints, int[] yPoints, int nPoints) {
+        draw(new Polygon(xPoints, yPoints, nPoints));
+    }
+
+    @Override
+    public void fillPolygon(int[] xPoints, int[] yPoints, int nPoints) {
+        fill(new Polygon(xPoints, yPoints, nPoints));
+    }
+
+    @Override
+    public void drawString(String str, int x, int y) {
+        drawString(str, (float) x, (float) y);
+    }
+
+    @Override
+    public void drawString(String str, float x, float y) {
+        if(str.isEmpty()) {
+            return;
+        }
+        if(paint instanceof Color) {
+            Color c = (Color) paint;
+            int a = Math.round(c.getAlpha() * getAlpha());
+            if(a <= 0) {
+                return;
+            }
+            AffineTransform at = new AffineTransform(transform);
+            at.translate(x, y);
+            if(drawText(str, font, at, new Color(c.getRed(), c.getGreen(),
+                                                 c.getBlue(), a))) {
+                return;
+            }
+        }
+        TextLayout layout = new TextLayout(str, font, getFontRenderContext());
+        fill(layout.getOutline(AffineTransform.getTranslateInstance(x, y)));
+    }
+
+    @Override
+    public void drawString(AttributedCharacterIterator iterator,
+                           int x, int y) {
+        drawString(iterator, (float) x, (float) y);
+    }
+
+    @Override
+    public void drawString(AttributedCharacterIterator iterator,
+                           float x, float y) {
+        if(iterator.getBeginIndex() == iterator.getEndIndex()) {
+            return;
+        }
+        TextLayout layout = new TextLayout(iterator, getFontRenderContext());
+        fill(layout.getOutline(AffineTransform.getTranslateInstance(x, y)));
+    }
+
+    @Override
+    public void drawGlyphVector(GlyphVector gv, float x, float y) {
+        fill(gv.getOutline(x, y));
+    }
+
+    @Override
+    public boolean drawImage(Image img, int x, int y,
+                             ImageObserver observer) {
+        BufferedImage b = toBufferedImage(img);
+        if(b != null) {
+            AffineTransform at = new AffineTransform(transform);
+            at.translate(x, y);
+            placeImage(b, at, getAlpha());
+        }
+        return true;
+    }
+
+    @Override
+    public boolean drawImage(Image img, int x, int y, int width, int height,
+                             ImageObserver observer) {
+        BufferedImage b = toBufferedImage(img);
+        if(b != null) {
+            AffineTransform at = new AffineTransform(transform);
+            at.translate(x, y);
+            at.scale((double) width / b.getWidth(),
+                     (double) height / b.getHeight());
+            placeImage(b, at, getAlpha());
+        }
+        return true;
+    }
+
+    @Override
+    public boolean drawImage(Image img, int x, int y, Color bgcolor,
+                             ImageObserver observer) {
+        BufferedImage b = toBufferedImage(img);
+        if(b != null) {
+            fillBackground(bgcolor, x, y, b.getWidth(), b.getHeight());
+        }
+        return drawImage(img, x, y, observer);
+    }
+
+    @Override
+    public boolean drawImage(Image img, int x, int y, int width, int height,
+                             Color bgcolor, ImageObserver observer) {
+        fillBackground(bgcolor, x, y, width, height);
+        return drawImage(img, x, y, width, height, observer);
+    }
+
+    @Override
+    public boolean drawImage(Image img, int dx1, int dy1, int dx2, int dy2,
+                             int sx1, int sy1, int sx2, int sy2,
+                             ImageObserver observer) {
+        BufferedImage b = toBufferedImage(img);
+        if(b == null) {
+            return true;
+        }
+        int x = Math.max(0, Math.min(sx1, sx2));
+        int y = Math.max(0, Math.min(sy1, sy2));
+        int w = Math.min(b.getWidth(), Math.max(sx1, sx2)) - x;
+        int h = Math.min(b.getHeight(), Math.max(sy1, sy2)) - y;
+        if(w <= 0 || h <= 0) {
+            return true;
+        }
+        AffineTransform at = new AffineTransform(transform);
+        at.translate(dx1, dy1);
+        at.scale((double)(dx2 - dx1) / (sx2 - sx1),
+                 (double)(dy2 - dy1) / (sy2 - sy1));
+        at.translate(x - Math.min(sx1, sx2), y - Math.min(sy1, sy2));
+        placeImage(b.getSubimage(x, y, w, h), at, getAlpha());
+        return true;
+    }
+
+    @Override
+    public boolean drawImage(Image img, int dx1, int dy1, int dx2, int dy2,
+                             int sx1, int sy1, int sx2, int sy2,
+                             Color bgcolor, ImageObserver observer) {
+        fillBackground(bgcolor, Math.min(dx1, dx2), Math.min(dy1, dy2),
+                       Math.abs(dx2 - dx1), Math.abs(dy2 - dy1));
+        return drawImage(img, dx1, dy1, dx2, dy2, sx1, sy1, sx2, sy2,
+                         observer);
+    }
+
+    @Override
+    public boolean drawImage(Image img, AffineTransform xform,
+                             ImageObserver obs) {
+        BufferedImage b = toBufferedImage(img);
+        if(b != null) {
+            AffineTransform at = new AffineTransform(transform);
+            if(xform != null) {
+                at.concatenate(xform);
+            }
+            placeImage(b, at, getAlpha());
+        }
+        return true;
+    }
+
+    @Override
+    public void drawImage(BufferedImage img, BufferedImageOp op,
+                          int x, int y) {
+        drawImage(op == null ? img : op.filter(img, null), x, y, null);
+    }
+
+    @Override
+    public void drawRenderedImage(RenderedImage img, AffineTransform xform) {
+        if(img instanceof BufferedImage) {
+            drawImage((BufferedImage) img, xform, null);
+        } else {
+            Log.d(1, this + ": unsupported image type " + img.getClass());
+        }
+    }
+
+    @Override
+    public void drawRenderableImage(RenderableImage img,
+                                    AffineTransform xform) {
+        drawRenderedImage(img.createDefaultRendering(), xform);
+    }
+
+    private void fillBackground(Color bgcolor, int x, int y,
+                                int width, int height) {
+        if(bgcolor == null) {
+            return;
+        }
+        Paint p = paint;
+        paint = bgcolor;
+        fillRect(x, y, width, height);
+        paint = p;
+    }
+
+    private static BufferedImage toBufferedImage(Image img) {
+        if(img == null || img instanceof BufferedImage) {
+            return (BufferedImage) img;
+        }
+        int w = img.getWidth(null);
+        int h = img.getHeight(null);
+        if(w <= 0 || h <= 0) {
+            return null;
+        }
+        BufferedImage b = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = b.createGraphics();
+        g.drawImage(img, 0, 0, null);
+        g.dispose();
+        return b;
+    }
+
+    @Override
+    public void copyArea(int x, int y, int width, int height,
+                         int dx, int dy) {
+        Log.d(1, this + ": copyArea is not supported");
+    }
+
+    @Override
+    public void setPaintMode() {
+        composite = AlphaComposite.SrcOver;
+    }
+
+    @Override
+    public void setXORMode(Color c1) {
+        Log.d(1, this + ": XOR mode is not supported");
+    }
+
+    @Override
+    public GraphicsConfiguration getDeviceConfiguration() {
+        return SCRATCH.getDeviceConfiguration();
+    }
+
+    @Override
+    public void setComposite(Composite comp) {
+        composite = comp;
+    }
+
+    @Override
+    public Composite getComposite() {
+        return composite;
+    }
+
+    @Override
+    public void setPaint(Paint paint) {
+        if(paint == null) {
+            return;
+        }
+        this.paint = paint;
+        if(paint instanceof Color) {
+            color = (Color) paint;
+        }
+    }
+
+    @Override
+    public Paint getPaint() {
+        return paint;
+    }
+
+    @Override
+    public Color getColor() {
+        return color;
+    }
+
+    @Override
+    public void setColor(Color c) {
+        if(c != null) {
+            color = c;
+            paint = c;
+        }
+    }
+
+    @Override
+    public void setBackground(Color color) {
+        background = color;
+    }
+
+    @Override
+    public Color getBackground() {
+        return background;
+    }
+
+    @Override
+    public void setStroke(Stroke s) {
+        stroke = s;
+    }
+
+    @Override
+    public Stroke getStroke() {
+        return stroke;
+    }
+
+    @Override
+    public Font getFont() {
+        return font;
+    }
+
+    @Override
+    public void setFont(Font font) {
+        if(font != null) {
+            this.font = font;
+        }
+    }
+
+    @Override
+    public FontMetrics getFontMetrics(Font f) {
+        synchronized(SCRATCH) {
+            SCRATCH.setRenderingHints(hints);
+            return SCRATCH.getFontMetrics(f);
+        }
+    }
+
+    @Override
+    public FontRenderContext getFontRenderContext() {
+        // glyphs are laid out unhinted in user space, the output scales them
+        return new FontRenderContext(null,
+                hints.get(RenderingHints.KEY_TEXT_ANTIALIASING) ==
+                        RenderingHints.VALUE_TEXT_ANTIALIAS_ON,
+                hints.get(RenderingHints.KEY_FRACTIONALMETRICS) ==
+                        RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+    }
+
+    @Override
+    public void setRenderingHint(RenderingHints.Key hintKey,
+                                 Object hintValue) {
+        hints.put(hintKey, hintValue);
+    }
+
+    @Override
+    public Object getRenderingHint(RenderingHints.Key hintKey) {
+        return hints.get(hintKey);
+    }
+
+    @Override
+    public void setRenderingHints(Map<?, ?> hints) {
+        this.hints = new RenderingHints(null);
+        this.hints.putAll(hints);
+    }
+
+    @Override
+    public void addRenderingHints(Map<?, ?> hints) {
+        this.hints.putAll(hints);
+    }
+
+    @Override
+    public RenderingHints getRenderingHints() {
+        return (RenderingHints) hints.clone();
+    }
+
+    @Override
+    public void translate(int x, int y) {
+        transform.translate(x, y);
+    }
+
+    @Override
+    public void translate(double tx, double ty) {
+        transform.translate(tx, ty);
+    }
+
+    @Override
+    public void rotate(double theta) {
+        transform.rotate(theta);
+    }
+
+    @Override
+    public void rotate(double theta, double x, double y) {
+        transform.rotate(theta, x, y);
+    }
+
+    @Override
+    public void scale(double sx, double sy) {
+        transform.scale(sx, sy);
+    }
+
+    @Override
+    public void shear(double shx, double shy) {
+        transform.shear(shx, shy);
+    }
+
+    @Override
+    public void transform(AffineTransform tx) {
+        transform.concatenate(tx);
+    }
+
+    @Override
+    public void setTransform(AffineTransform tx) {
+        transform = new AffineTransform(tx);
+    }
+
+    @Override
+    public AffineTransform getTransform() {
+        return new AffineTransform(transform);
+    }
+
+    @Override
+    public Shape getClip() {
+        if(clip == null) {
+            return null;
+        }
+        try {
+            return transform.createInverse().createTransformedShape(clip);
+        } catch(NoninvertibleTransformException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public Rectangle getClipBounds() {
+        Shape s = getClip();
+        return s == null ? null : s.getBounds();
+    }
+
+    @Override
+    public void clipRect(int x, int y, int width, int height) {
+        clip(new Rectangle(x, y, width, height));
+    }
+
+    @Override
+    public void setClip(int x, int y, int width, int height) {
+        setClip(new Rectangle(x, y, width, height));
+    }
+
+    @Override
+    public void setClip(Shape clip) {
+        this.clip = clip == null ? null :
+                    transform.createTransformedShape(clip);
+    }
+
+    @Override
+    public void clip(Shape s) {
+        if(s == null) {
+            clip = null;
+            return;
+        }
+        Shape device = transform.createTransformedShape(s);
+        if(clip == null) {
+            clip = device;
+            return;
+        }
+        Area a = new Area(clip);
+        a.intersect(new Area(device));
+        clip = a;
+    }
+}
@@ -205,7 +205,7 @@ public class BadgeDataEditorForm extends JDialog {
             updateColors();
             paneBackgroundFit.getComboBox().setSelectedIndex(
                     badge.getBackgroundScaling());
-            updateBackgroundImage(badge.background);
+            updateBackgroundImage(badge.getBackground());
         } else {
             bg = Color.WHITE;
             textBg = Color.LIGHT_GRAY;
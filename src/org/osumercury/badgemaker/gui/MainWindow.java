@@ -93,6 +93,7 @@ public class MainWindow extends JFrame {
     private TextInputPane panePDFBadgeHSpacing;
     private TextInputPane panePDFBadgeVSpacing;
     private TextInputPane panePDFOutputFile;
+    private TextInputPane paneRenderThreads;
     
     public void init() {
         // use default
@@ -307,7 +308,19 @@ public class MainWindow extends JFrame {
             savePDF(panePDFOutputFile.getText());
         });
         
+        paneRenderThreads = new TextInputPane("Render Threads: ", 200);
+        paneRenderThreads.setText(String.valueOf(BatchRenderer.getThreads()));
+        paneRenderThreads.setMaximumSize(new Dimension(Short.MAX_VALUE, 100));
+        paneRenderThreads.setToolTipText("Number of badges rendered " +
+                "concurrently when saving");
+        
         paneOutput.add(Box.createRigidArea(new Dimension(5, 5)));
+        paneOutput.add(paneRenderThreads);
+        paneOutput.add(Box.createRigidArea(new Dimension(5, 10)));
+        JSeparator threadsSeparator = new JSeparator(SwingConstants.HORIZONTAL);
+        threadsSeparator.setMaximumSize(new Dimension(Short.MAX_VALUE, 1));
+        paneOutput.add(threadsSeparator);
+        paneOutput.add(Box.createRigidArea(new Dimension(5, 10)));
         paneOutput.add(panePDFPageSize);
         paneOutput.add(Box.createRigidArea(new Dimension(5, 5)));
         paneOutput.add(panePDFPageOrientation);
@@ -422,7 +435,7 @@ public class MainWindow extends JFrame {
                 row[3] = String.format("%06x", badge.backgroundColor.getRGB());
                 row[4] = String.format("%06x", badge.textBackgroundColor.getRGB());
                 row[5] = String.format("%06x", badge.textColor.getRGB());
-                row[6] = badge.background;
+                row[6] = badge.getBackgroundRef();
                 row[7] = badge.getBackgroundScaling();
                 m.addRow(row);
             }
@@ -466,6 +479,16 @@ public class MainWindow extends JFrame {
         }
     }
     
+    private void applyRenderThreads() {
+        try {
+            BatchRenderer.setThreads(Integer.parseInt(
+                    paneRenderThreads.getText().trim()));
+        } catch(NumberFormatException nfe) {
+            // keep the previous setting
+        }
+        paneRenderThreads.setText(String.valueOf(BatchRenderer.getThreads()));
+    }
+    
     public org.osumercury.badgemaker.Renderer getCurrentRenderer() {
         switch(cmbRenderers.getSelectedIndex()) {
             case 0: return r0;
@@ -508,6 +531,7 @@ public class MainWindow extends JFrame {
             final float vSpacing = Float.parseFloat(panePDFBadgeVSpacing.getText());
 
             applySize();
+            applyRenderThreads();
             (new Thread(() -> {
                 IO.generatePDF(currentRenderer,
                                ProgressDialog.create("Saving PDF"), 
@@ -523,6 +547,7 @@ public class MainWindow extends JFrame {
     
     private void savePNG(String path) {
         applySize();
+        applyRenderThreads();
         (new Thread(() -> {
             IO.savePNG(getCurrentRenderer(), 
                        ProgressDialog.create("Saving PNG"),
@@ -532,6 +557,7 @@ public class MainWindow extends JFrame {
     
     private void saveJPG(String path) {
         applySize();
+        applyRenderThreads();
         (new Thread(() -> {
             IO.saveJPG(getCurrentRenderer(), 
                        ProgressDialog.create("Saving JPG"),
@@ -694,7 +720,8 @@ public class MainWindow extends JFrame {
     }
 
     private void previewRender() {
-        Badge preview = new Badge(47, "Professor Xyz", "School of Magic", null,
+        Badge preview = new Badge(47, "Professor Xyz", "School of Magic",
+                                  (ImageRef) null,
                                   "ffffff", "ff7300", "ffffff");
         preview.setWidth(width);
         preview.setProportion(height / width);
@@ -702,11 +729,11 @@ public class MainWindow extends JFrame {
         lblRenderPreview.setIcon(null);
         lblRenderPreview.setText("Rendering Preview...");
         (new Thread(() -> {
-            BufferedImage scaledPreview = ImageTools.scale(
-                                          currentRenderer.render(preview), 
-                                          360, 360);
-            int w = scaledPreview.getWidth();
-            int h = scaledPreview.getHeight();
+            // draw the badge scaled down into the frame, no full size image
+            Dimension d = preview.getPixelDimension();
+            double scale = Math.min(360.0 / d.width, 360.0 / d.height);
+            int w = (int)(d.width * scale);
+            int h = (int)(d.height * scale);
             BufferedImage previewImage = new BufferedImage(w+4, h+4,
                                          BufferedImage.TYPE_INT_ARGB);
             Graphics2D g = previewImage.createGraphics();
@@ -714,7 +741,14 @@ public class MainWindow extends JFrame {
             g.fillRect(0, 0, w+4, h+4);
             g.setColor(Color.WHITE);
             g.fillRect(1, 1, w+2, h+2);
-            g.drawImage(scaledPreview, 2, 2, null);
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                               RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING,
+                               RenderingHints.VALUE_RENDER_QUALITY);
+            g.clipRect(2, 2, w, h);
+            g.translate(2, 2);
+            g.scale(scale, scale);
+            currentRenderer.renderTo(g, preview);
             g.dispose();
             Icon icon = new ImageIcon(previewImage);
             SwingUtilities.invokeLater(() -> {
@@ -17,7 +17,6 @@ package org.osumercury.badgemaker.renderers;
 
 import java.awt.Dimension;
 import java.awt.Font;
-import java.awt.FontMetrics;
 import java.awt.Graphics2D;
 import java.awt.Polygon;
 import java.awt.RenderingHints;
@@ -42,6 +41,9 @@ public class ClassicMercuryBadgeRenderer extends Renderer {
     private float primaryHeight = 0.15f;
     private float secondaryHeight = 0.15f;
     private float textHeightFactor = 1.00f;
+    private String textMode = TextSprite.MODE_RASTER;
+    private boolean frozen = false;
+    private ClassicMercuryBadgeRenderer snapshot;
     
     @Override
     public String getDescription() {
@@ -62,10 +64,45 @@ public class ClassicMercuryBadgeRenderer extends Renderer {
                     "Make text bold {\"yes\", \"no\"}");
         addProperty("font-size-initial", Property.INTEGER, "" + originalFontSize,
                     "initial full resolution font size");
+        addProperty("text-mode", Property.STRING, textMode,
+                    "Text drawing {\"raster\", \"direct\"}");
+    }
+    
+    private ClassicMercuryBadgeRenderer(ClassicMercuryBadgeRenderer r) {
+        this();
+        font = r.font;
+        originalFontSize = r.originalFontSize;
+        fontBold = r.fontBold;
+        primaryHeight = r.primaryHeight;
+        secondaryHeight = r.secondaryHeight;
+        textHeightFactor = r.textHeightFactor;
+        textMode = r.textMode;
+        frozen = true;
     }
     
     @Override
-    public void setProperty(String key, String value) {
+    public synchronized Renderer snapshot() {
+        if(frozen) {
+            return this;
+        }
+        if(snapshot == null) {
+            snapshot = new ClassicMercuryBadgeRenderer(this);
+        }
+        return snapshot;
+    }
+    
+    @Override
+    public boolean isSnapshot() {
+        return frozen;
+    }
+    
+    @Override
+    public synchronized void setProperty(String key, String value) {
+        if(frozen) {
+            Log.err("Renderer snapshot is read-only, ignoring " + key);
+            return;
+        }
+        snapshot = null;
         Log.d(0, Main.pad(25, key) + " " + value);
         try {
             switch(key) {
@@ -87,6 +124,9 @@ public class ClassicMercuryBadgeRenderer extends Renderer {
                 case "font-size-initial":   
                     originalFontSize = Integer.parseInt(value); 
                     break;
+                case "text-mode":
+                    textMode = value;
+                    break;
                 default:
                     System.err.println("Unknown property key: " + key);
             }
@@ -103,27 +143,66 @@ public class ClassicMercuryBadgeRenderer extends Renderer {
             case "secondary-height":    return secondaryHeight;
             case "text-height-factor":  return textHeightFactor;
             case "font-bold":           return fontBold ? "yes" : "no";
+            case "font-size-initial":   return originalFontSize;
+            case "text-mode":           return textMode;
             default:
                 System.err.println("Unknown property key: " + key);
         }
         return null;
     }
     
+    @Override
+    public Dimension getBackgroundSize(Badge badge) {
+        Dimension d = badge.getPixelDimension();
+        switch(badge.getBackgroundScaling()) {
+            case Badge.BACKGROUND_FILL:
+                return d;
+            case Badge.BACKGROUND_FIT_HEIGHT:
+                return new Dimension(0, (int)((1-primaryHeight-secondaryHeight)
+                                              * d.height));
+            default:
+            case Badge.BACKGROUND_FIT_WIDTH:
+                return new Dimension(d.width, 0);
+        }
+    }
+    
     @Override
     public BufferedImage render(Badge badge) {
+        if(!frozen) {
+            return snapshot().render(badge);
+        }
         // the renderer always works with pixel dimensions
         Dimension d = badge.getPixelDimension();
         BufferedImage out = new BufferedImage(d.width, d.height, 
                                               BufferedImage.TYPE_INT_ARGB);
         Graphics2D g = out.createGraphics();
+        draw(g, badge, TextSprite.isDirect(textMode));
+        g.dispose();
+        return out;
+    }
+    
+    @Override
+    public void renderTo(Graphics2D g, Badge badge) {
+        if(!frozen) {
+            snapshot().renderTo(g, badge);
+            return;
+        }
+        Graphics2D g2 = (Graphics2D) g.create();
+        // pre-rendered text would be resampled, draw glyphs instead
+        draw(g2, badge, TextSprite.isDirect(textMode) || isResampled(g));
+        g2.dispose();
+    }
+    
+    private void draw(Graphics2D g, Badge badge, boolean direct) {
+        Dimension d = badge.getPixelDimension();
         g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
                            RenderingHints.VALUE_ANTIALIAS_ON);
         g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, 
                            RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
         g.setColor(badge.backgroundColor);
         g.fillRect(0, 0, d.width, d.height);
-        if(badge.background != null) {
-            BufferedImage background;
+        BufferedImage bgImage = badge.getBackground(getBackgroundSize(badge));
+        if(bgImage != null) {
             int bgWidth, bgHeight;
             switch(badge.getBackgroundScaling()) {
                 case Badge.BACKGROUND_FILL:
@@ -133,42 +212,49 @@ public class ClassicMercuryBadgeRenderer extends Renderer {
                 case Badge.BACKGROUND_FIT_HEIGHT:
                     bgHeight = (int)((1-primaryHeight-secondaryHeight)*d.height);
                     bgWidth = (int)((float)bgHeight /
-                              badge.background.getHeight()
-                              * badge.background.getWidth());
+                              bgImage.getHeight()
+                              * bgImage.getWidth());
                     
                     break;
                 default:
                 case Badge.BACKGROUND_FIT_WIDTH:
                     bgWidth = d.width;
                     bgHeight = (int)((float)d.width / 
-                               badge.background.getWidth()
-                               * badge.background.getHeight());
+                               bgImage.getWidth()
+                               * bgImage.getHeight());
                     break;
             }
-            Log.d(0, "        Scaling background image");
-            background = ImageTools.scale(badge.background, bgWidth, bgHeight);
             int backgroundY;
             switch(badge.getBackgroundVerticalPosition()) {
                 case Badge.BACKGROUND_TOP:
                     backgroundY = 0;
                     break;
                 case Badge.BACKGROUND_BOTTOM:
-                    backgroundY = d.height - background.getHeight();
+                    backgroundY = d.height - bgHeight;
                     break;
                 default:
                 case Badge.BACKGROUND_MIDDLE:         
                     if(badge.getBackgroundScaling() == Badge.BACKGROUND_FIT_HEIGHT) {
                         backgroundY = (int)(secondaryHeight*d.height + 
                                       (1-secondaryHeight-primaryHeight)*d.height/2.0f -
-                                      background.getHeight()/2.0);
+                                      bgHeight/2.0);
                     } else {
                         backgroundY = (int)(d.height/2.0f -
-                                      background.getHeight()/2.0);
+                                      bgHeight/2.0);
                     }
             }
-            g.drawImage(background,
-                        (int)(d.width/2.0 - background.getWidth()/2.0),
-                        backgroundY, null);
+            int backgroundX = (int)(d.width/2.0 - bgWidth/2.0);
+            if(isResampled(g)) {
+                // the surface scales the image, keep the decoded pixels
+                g.drawImage(bgImage, backgroundX, backgroundY,
+                            bgWidth, bgHeight, null);
+            } else {
+                Log.d(0, "        Scaling background image");
+                BufferedImage background = ImageTools.getScaled(bgImage,
+                                                                bgWidth,
+                                                                bgHeight);
+                g.drawImage(background, backgroundX, backgroundY, null);
+            }
         }
         g.setColor(badge.textBackgroundColor);
         Polygon p = new Polygon();
@@ -183,96 +269,53 @@ public class ClassicMercuryBadgeRenderer extends Renderer {
         p.addPoint((int)(1.00 * d.width),   (int) (1.00 * d.height));
         p.addPoint((int)(1.00 * d.width),   (int) ((1-primaryHeight) * d.height));
         g.fillPolygon(p);
-        FontMetrics fm;
-        int textX, textY, textW, textH, limitW, numberW;
+        int textX, textY, textH, limitW, numberW;
         
-        BufferedImage imgNumber;
-        BufferedImage imgPrimaryText;
-        BufferedImage imgSecondaryText;
+        TextSprite imgNumber;
+        TextSprite imgPrimaryText;
+        TextSprite imgSecondaryText;
         
         String fNumber = String.format("%02d", badge.number);
         Font f = new Font(font, fontBold ? Font.BOLD : Font.PLAIN,
                           originalFontSize);
-        Graphics2D gg;
-        fm = g.getFontMetrics(f);
         
         imgNumber = null;
         numberW = 0;
         if(badge.number > -1) {
-            imgNumber = new BufferedImage(fm.stringWidth(fNumber),
-                                          fm.getHeight(),
-                                          BufferedImage.TYPE_INT_ARGB);
-            gg = imgNumber.createGraphics();
-            gg.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-                                RenderingHints.VALUE_ANTIALIAS_ON);
-            gg.setColor(badge.textColor);
-            gg.setFont(f);
-            gg.drawString(fNumber, 0, fm.getHeight()-fm.getDescent());
-            gg.dispose();
             textH = (int)(secondaryHeight * d.height);
-            numberW = (int)((float)textH / imgNumber.getHeight() *
-                          imgNumber.getWidth());
-            g.drawImage(ImageTools.scale(imgNumber, numberW, textH), 
-                        (int)(0.02f * d.width), 0, null);
+            imgNumber = TextSprite.create(g, direct, f, fNumber,
+                                          badge.textColor, textH,
+                                          Integer.MAX_VALUE);
+            numberW = imgNumber.getWidth();
+            imgNumber.draw(g, (int)(0.02f * d.width), 0);
         }
         
-        imgPrimaryText = new BufferedImage(fm.stringWidth(badge.primaryText),
-                                           fm.getHeight(),
-                                           BufferedImage.TYPE_INT_ARGB);
-        gg = imgPrimaryText.createGraphics();
-        gg.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-                            RenderingHints.VALUE_ANTIALIAS_ON);
-        gg.setColor(badge.textColor);
-        gg.setFont(f);
-        gg.drawString(badge.primaryText, 0, fm.getHeight()-fm.getDescent());
-        gg.dispose();
         textH = (int)(textHeightFactor * primaryHeight * d.height);
-        textW = (int)((float)textH / imgPrimaryText.getHeight() *
-                      imgPrimaryText.getWidth());
         limitW = d.width - (int)(0.08f * d.width);
-        if(textW > limitW) {
-            textW = limitW;
-            textH = (int)((float)textW / imgPrimaryText.getWidth() *
-                          imgPrimaryText.getHeight());
-        }
-        textX = (int)(d.width / 2.0f - textW / 2.0f);        
+        imgPrimaryText = TextSprite.create(g, direct, f, badge.primaryText,
+                                           badge.textColor, textH, limitW);
+        textH = imgPrimaryText.getHeight();
+        textX = (int)(d.width / 2.0f - imgPrimaryText.getWidth() / 2.0f);        
         textY = d.height - textH - (int)(primaryHeight * d.height - textH) / 2;        
-        g.drawImage(ImageTools.scale(imgPrimaryText, textW, textH), 
-                    textX, textY, null);
+        imgPrimaryText.draw(g, textX, textY);
         
         if(!badge.secondaryText.equals("")) {
-            imgSecondaryText = new BufferedImage(fm.stringWidth(badge.secondaryText),
-                                                 fm.getHeight(),
-                                                 BufferedImage.TYPE_INT_ARGB);
-            gg = imgSecondaryText.createGraphics();
-            gg.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-                                RenderingHints.VALUE_ANTIALIAS_ON);
-            gg.setColor(badge.textColor);
-            gg.setFont(f);
-            gg.drawString(badge.secondaryText, 0, fm.getHeight()-fm.getDescent());
-            gg.dispose();
             textH = (int)(textHeightFactor * secondaryHeight * d.height);
-            textW = (int)((float)textH / imgSecondaryText.getHeight() *
-                          imgSecondaryText.getWidth());
             limitW = d.width - (imgNumber != null ? numberW : 0)
                      - (int)(0.25f * d.width);
-            if(textW > limitW) {
-                textW = limitW;
-                textH = (int)((float)textW / imgSecondaryText.getWidth() *
-                              imgSecondaryText.getHeight());
-            }
+            imgSecondaryText = TextSprite.create(g, direct, f,
+                                                 badge.secondaryText,
+                                                 badge.textColor,
+                                                 textH, limitW);
+            textH = imgSecondaryText.getHeight();
             textX = (imgNumber != null ? numberW : 0)
                     + (int)(0.06f * d.width);
             textY = (int)(secondaryHeight * d.height / 2 - textH / 2.0f);
             if(textY < 0) {
                 textY = 0;
             }
-            g.drawImage(ImageTools.scale(imgSecondaryText, textW, textH), 
-                        textX, textY, null);
+            imgSecondaryText.draw(g, textX, textY);
         }
-                
-        g.dispose();
-        return out;
     }
     
     @Override
@@ -292,8 +335,8 @@ public class ClassicMercuryBadgeRenderer extends Renderer {
             MainWindow.getFontSelectDialog().showDialog();
             String fontName = MainWindow.getFontSelectDialog().getFontName();
             if(fontName != null) {
-                font = fontName;
-                paneFont.setText(font);
+                setProperty("font", fontName);
+                paneFont.setText(fontName);
             }
         });
         pane.add(paneFont);
@@ -302,7 +345,7 @@ public class ClassicMercuryBadgeRenderer extends Renderer {
         final OptionsPane paneOptions = new OptionsPane("Font Options: ", 120,
                                                         "Bold");
         paneOptions.addAction(0, e -> {
-            fontBold = paneOptions.getValue(0);
+            setProperty("font-bold", paneOptions.getValue(0) ? "yes" : "no");
         });
         paneOptions.setValue(0, fontBold);
         paneOptions.setMaximumSize(new Dimension(Short.MAX_VALUE, 100));
@@ -347,7 +390,8 @@ public class ClassicMercuryBadgeRenderer extends Renderer {
     private TextInputPane paneSecondaryHeight;
     private TextInputPane paneTextHeightFactor;
     
-    private void applySettings() {
+    private synchronized void applySettings() {
+        snapshot = null;
         try {
             float newPrimaryHeight = Float.parseFloat(
                     panePrimaryHeight.getText());
@@ -17,7 +17,12 @@ package org.osumercury.badgemaker.renderers;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.swing.Box;
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
@@ -36,6 +41,7 @@ public class MercuryCertificateRenderer extends Renderer {
     private String font = Font.SANS_SERIF;
     private Color textBackgroundColor = new Color(0xff, 0x73, 0x00);
     private int originalFontSize = 200;
+    private String textMode = TextSprite.MODE_RASTER;
     private float topPadding = 0.07f;
     private float signaturesPosition = 0.84f;
     private float backgroundHeight = 0.75f;
@@ -63,6 +69,10 @@ public class MercuryCertificateRenderer extends Renderer {
     private String textDateLocation = "Month ##, 20## - Stillwater, Oklahoma";
     private String pathToLogo = null;
     private String pathToBackground = null;
+    private boolean frozen = false;
+    private MercuryCertificateRenderer snapshot;
+    private final Map<String, BufferedImage> templates =
+            new ConcurrentHashMap<>();
     
     public MercuryCertificateRenderer() {
         addProperty("font", Property.STRING, font,
@@ -119,11 +129,97 @@ public class MercuryCertificateRenderer extends Renderer {
                     "minor vertical spacing between text in proportion to the page height");
         addProperty("font-size-initial", Property.INTEGER, "" + originalFontSize,
                     "initial full resolution font size");
+        addProperty("text-mode", Property.STRING, textMode,
+                    "text drawing {\"raster\", \"direct\"}");
 
     }
     
+    private MercuryCertificateRenderer(MercuryCertificateRenderer r) {
+        this();
+        font = r.font;
+        textBackgroundColor = r.textBackgroundColor;
+        originalFontSize = r.originalFontSize;
+        textMode = r.textMode;
+        topPadding = r.topPadding;
+        signaturesPosition = r.signaturesPosition;
+        backgroundHeight = r.backgroundHeight;
+        logoHeight = r.logoHeight;
+        nameHeight = r.nameHeight;
+        institutionHeight = r.institutionHeight;
+        mainTextHeight = r.mainTextHeight;
+        competitionTitleHeight = r.competitionTitleHeight;
+        dateLocationHeight = r.dateLocationHeight;
+        staffNamesHeight = r.staffNamesHeight;
+        staffTitleHeight = r.staffTitleHeight;
+        majorSpacing = r.majorSpacing;
+        minorSpacing = r.minorSpacing;
+        textCertification = r.textCertification;
+        textParticipation = r.textParticipation;
+        textAdvisorName = r.textAdvisorName;
+        textAdvisorTitle = r.textAdvisorTitle;
+        textPresidentName = r.textPresidentName;
+        textPresidentTitle = r.textPresidentTitle;
+        textCompetitionTitle = r.textCompetitionTitle;
+        textHostTitle = r.textHostTitle;
+        textHostInstitution = r.textHostInstitution;
+        textDateLocation = r.textDateLocation;
+        pathToLogo = r.pathToLogo;
+        pathToBackground = r.pathToBackground;
+        frozen = true;
+    }
+    
+    @Override
+    public synchronized Renderer snapshot() {
+        if(frozen) {
+            return this;
+        }
+        if(snapshot == null) {
+            snapshot = new MercuryCertificateRenderer(this);
+        }
+        return snapshot;
+    }
+    
+    @Override
+    public boolean isSnapshot() {
+        return frozen;
+    }
+
+    @Override
+    public List<File> getInputFiles() {
+        List<File> files = new ArrayList<>();
+        if(pathToLogo != null) {
+            files.add(new File(pathToLogo));
+        }
+        if(pathToBackground != null) {
+            files.add(new File(pathToBackground));
+        }
+        return files;
+    }
+
+    @Override
+    public synchronized void reload() {
+        if(frozen) {
+            return;
+        }
+        // templates hold the decoded logo and background
+        if(pathToLogo != null) {
+            ImageTools.invalidate(pathToLogo);
+        }
+        if(pathToBackground != null) {
+            ImageTools.invalidate(pathToBackground);
+        }
+        templates.clear();
+        snapshot = null;
+        Log.d(0, "Reloaded certificate images");
+    }
+
     @Override
-    public void setProperty(String key, String value) {
+    public synchronized void setProperty(String key, String value) {
+        if(frozen) {
+            Log.err("Renderer snapshot is read-only, ignoring " + key);
+            return;
+        }
+        snapshot = null;
         try {
             Log.d(0, Main.pad(25, key) + " " + value);
             switch(key) {
@@ -155,6 +251,7 @@ public class MercuryCertificateRenderer extends Renderer {
                 case "major-spacing":       majorSpacing = Float.parseFloat(value); break;
                 case "minor-spacing":       minorSpacing = Float.parseFloat(value); break;
                 case "font-size-initial":   originalFontSize = Integer.parseInt(value); break;
+                case "text-mode":           textMode = value; break;
                 default:
                     Log.err("Unknown property key: " + key);
             }
@@ -196,6 +293,7 @@ public class MercuryCertificateRenderer extends Renderer {
             case "major-spacing":       return majorSpacing;
             case "minor-spacing":       return minorSpacing;
             case "font-size-initial":   return originalFontSize;
+            case "text-mode":           return textMode;
             default:
                 Log.err("Unknown property key: " + key);
         }
@@ -204,17 +302,72 @@ public class MercuryCertificateRenderer extends Renderer {
 
     @Override
     public BufferedImage render(Badge badge) {
+        if(!frozen) {
+            return snapshot().render(badge);
+        }
         Dimension d = badge.getPixelDimension();
         BufferedImage img = new BufferedImage(d.width, d.height,
                                               BufferedImage.TYPE_INT_ARGB);
         Graphics2D g = img.createGraphics();
         g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
                            RenderingHints.VALUE_ANTIALIAS_ON);
-        int w, h, y, x;
-        BufferedImage sprite, logo = null, background = null;
         g.setColor(badge.backgroundColor);
         g.fillRect(0, 0, d.width, d.height);
-        
+        g.drawImage(getTemplate(d), 0, 0, null);
+        drawLayers(g, d, badge);
+        g.dispose();
+        return img;
+    }
+    
+    @Override
+    public void renderTo(Graphics2D g, Badge badge) {
+        if(!frozen) {
+            snapshot().renderTo(g, badge);
+            return;
+        }
+        Dimension d = badge.getPixelDimension();
+        Graphics2D g2 = (Graphics2D) g.create();
+        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                            RenderingHints.VALUE_ANTIALIAS_ON);
+        if(isResampled(g)) {
+            // the template is a badge sized raster, draw its parts instead
+            g2.setColor(badge.backgroundColor);
+            g2.fillRect(0, 0, d.width, d.height);
+            drawImages(g2, d);
+            drawLayers(g2, d, null);
+        } else {
+            g2.setColor(badge.backgroundColor);
+            g2.fillRect(0, 0, d.width, d.height);
+            g2.drawImage(getTemplate(d), 0, 0, null);
+        }
+        drawLayers(g2, d, badge);
+        g2.dispose();
+    }
+    
+    /**
+     * Everything that is the same on every certificate of this size, on a
+     * transparent image so it can be drawn over any background color. Built
+     * once per snapshot and size
+     */
+    private BufferedImage getTemplate(Dimension d) {
+        String key = d.width + "x" + d.height;
+        return templates.computeIfAbsent(key, (k) -> {
+            Log.d(1, "        building certificate template " + k);
+            BufferedImage img = new BufferedImage(d.width, d.height,
+                                                  BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = img.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                               RenderingHints.VALUE_ANTIALIAS_ON);
+            drawImages(g, d);
+            drawLayers(g, d, null);
+            g.dispose();
+            return img;
+        });
+    }
+    
+    private void drawImages(Graphics2D g, Dimension d) {
+        int w, h;
+        BufferedImage logo = null, background = null;
         if(pathToBackground != null) {
             try{
                 background = ImageTools.get(pathToBackground);
@@ -226,7 +379,7 @@ public class MercuryCertificateRenderer extends Renderer {
         if(background != null) {
             h = (int)(backgroundHeight * d.height);
             w = (int)((float)h / background.getHeight() * background.getWidth());
-            g.drawImage(ImageTools.scale(background, w, h),
+            g.drawImage(ImageTools.getScaled(background, w, h),
                         (int)(d.width / 2.0f - w / 2.0f),
                         (int)(d.height / 2.0f - h / 2.0f), null);
         }
@@ -242,268 +395,116 @@ public class MercuryCertificateRenderer extends Renderer {
         if(logo != null) {
             h = (int)(logoHeight * d.height);
             w = (int)((float)h / logo.getHeight() * logo.getWidth());
-            g.drawImage(ImageTools.scale(logo, w, h),
+            g.drawImage(ImageTools.getScaled(logo, w, h),
                         (int)(d.width / 2.0f - w / 2.0f),
                         (int)((1.0f - 0.05f - logoHeight) * d.height), null);
         }
+    }
+    
+    /**
+     * Walk the certificate layout and draw the per-badge layers (team name,
+     * institution and participation line), or the static text when badge is
+     * null
+     */
+    private void drawLayers(Graphics2D g, Dimension d, Badge badge) {
+        int w, h, y, x;
+        TextSprite sprite;
+        boolean variable = badge != null;
         
-        // generate our texts (we scall them down after they're rasterized)
-        BufferedImage imgPrimary;
-        BufferedImage imgSecondary;
-        BufferedImage imgCertification;
-        BufferedImage imgParticipation;
-        BufferedImage imgAdvisorName;
-        BufferedImage imgAdvisorTitle;
-        BufferedImage imgPresidentName;
-        BufferedImage imgPresidentTitle;
-        BufferedImage imgCompetitionTitle;
-        BufferedImage imgHostTitle;
-        BufferedImage imgHostInstitution;
-        BufferedImage imgDateLocation;
-        
-        // let's do the non-bold ones first
-        Font f = new Font(font, Font.PLAIN, originalFontSize);
-        Graphics2D gg;
-        FontMetrics fm = g.getFontMetrics(f);
-        
-        w = fm.stringWidth(textCertification);
-        w = w == 0 ? 1 : w;
-        imgCertification = new BufferedImage(w,
-                                             fm.getHeight(),
-                                             BufferedImage.TYPE_INT_ARGB);
-        gg = imgCertification.createGraphics();
-        gg.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-                            RenderingHints.VALUE_ANTIALIAS_ON);
-        gg.setColor(Color.BLACK);
-        gg.setFont(f);
-        gg.drawString(textCertification, 0, fm.getHeight()-fm.getDescent());
-        gg.dispose();
-        
-        String textParticipationFinal = textParticipation;
-        for(String line : badge.getExtraData()) {
-            if(line.trim().startsWith("text-participation::")) {
-                String tokens[] = line.trim().split("::", 2);
-                if(tokens.length == 2) {
-                    textParticipationFinal = tokens[1];
-                }
-            }
-        }
-        w = fm.stringWidth(textParticipationFinal);
-        w = w == 0 ? 1 : w;
-        imgParticipation = new BufferedImage(w,
-                                             fm.getHeight(),
-                                             BufferedImage.TYPE_INT_ARGB);
-        gg = imgParticipation.createGraphics();
-        gg.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-                            RenderingHints.VALUE_ANTIALIAS_ON);
-        gg.setColor(Color.BLACK);
-        gg.setFont(f);
-        gg.drawString(textParticipationFinal, 0, fm.getHeight()-fm.getDescent());
-        gg.dispose();                
-        
-        w = fm.stringWidth(textAdvisorTitle);
-        w = w == 0 ? 1 : w;
-        imgAdvisorTitle = new BufferedImage(w,
-                                            fm.getHeight(),
-                                            BufferedImage.TYPE_INT_ARGB);
-        gg = imgAdvisorTitle.createGraphics();
-        gg.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-                            RenderingHints.VALUE_ANTIALIAS_ON);
-        gg.setColor(Color.BLACK);
-        gg.setFont(f);
-        gg.drawString(textAdvisorTitle, 0, fm.getHeight()-fm.getDescent());
-        gg.dispose();                
-        
-        w = fm.stringWidth(textPresidentTitle);
-        w = w == 0 ? 1 : w;
-        imgPresidentTitle = new BufferedImage(w,
-                                              fm.getHeight(),
-                                              BufferedImage.TYPE_INT_ARGB);
-        gg = imgPresidentTitle.createGraphics();
-        gg.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-                            RenderingHints.VALUE_ANTIALIAS_ON);
-        gg.setColor(Color.BLACK);
-        gg.setFont(f);
-        gg.drawString(textPresidentTitle, 0, fm.getHeight()-fm.getDescent());
-        gg.dispose();                
-        
-        w = fm.stringWidth(textHostTitle);
-        w = w == 0 ? 1 : w;
-        imgHostTitle = new BufferedImage(w,
-                                         fm.getHeight(),
-                                         BufferedImage.TYPE_INT_ARGB);
-        gg = imgHostTitle.createGraphics();
-        gg.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-                            RenderingHints.VALUE_ANTIALIAS_ON);
-        gg.setColor(Color.BLACK);
-        gg.setFont(f);
-        gg.drawString(textHostTitle, 0, fm.getHeight()-fm.getDescent());
-        gg.dispose();
-        
-        w = fm.stringWidth(textHostInstitution);
-        w = w == 0 ? 1 : w;
-        imgHostInstitution = new BufferedImage(w,
-                                               fm.getHeight(),
-                                               BufferedImage.TYPE_INT_ARGB);
-        gg = imgHostInstitution.createGraphics();
-        gg.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-                            RenderingHints.VALUE_ANTIALIAS_ON);
-        gg.setColor(Color.BLACK);
-        gg.setFont(f);
-        gg.drawString(textHostInstitution, 0, fm.getHeight()-fm.getDescent());
-        gg.dispose();
-        
-        w = fm.stringWidth(textDateLocation);
-        w = w == 0 ? 1 : w;
-        imgDateLocation = new BufferedImage(w,
-                                            fm.getHeight(),
-                                            BufferedImage.TYPE_INT_ARGB);
-        gg = imgDateLocation.createGraphics();
-        gg.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-                            RenderingHints.VALUE_ANTIALIAS_ON);
-        gg.setColor(Color.BLACK);
-        gg.setFont(f);
-        gg.drawString(textDateLocation, 0, fm.getHeight()-fm.getDescent());
-        gg.dispose();
-        
-        // bold texts
-        f = new Font(font, Font.BOLD, originalFontSize);
-        fm = g.getFontMetrics(f);
-        
-        w = fm.stringWidth(textCompetitionTitle);
-        w = w == 0 ? 1 : w;
-        imgCompetitionTitle = new BufferedImage(w,
-                                                fm.getHeight(),
-                                                BufferedImage.TYPE_INT_ARGB);
-        gg = imgCompetitionTitle.createGraphics();
-        gg.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-                            RenderingHints.VALUE_ANTIALIAS_ON);
-        gg.setColor(Color.BLACK);
-        gg.setFont(f);
-        gg.drawString(textCompetitionTitle, 0, fm.getHeight()-fm.getDescent());
-        gg.dispose();
-        
-        w = fm.stringWidth(textAdvisorName);
-        w = w == 0 ? 1 : w;
-        imgAdvisorName = new BufferedImage(w,
-                                           fm.getHeight(),
-                                           BufferedImage.TYPE_INT_ARGB);
-        gg = imgAdvisorName.createGraphics();
-        gg.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-                            RenderingHints.VALUE_ANTIALIAS_ON);
-        gg.setColor(Color.BLACK);
-        gg.setFont(f);
-        gg.drawString(textAdvisorName, 0, fm.getHeight()-fm.getDescent());
-        gg.dispose();
-        
-        w = fm.stringWidth(textPresidentName);
-        w = w == 0 ? 1 : w;
-        imgPresidentName = new BufferedImage(w,
-                                             fm.getHeight(),
-                                             BufferedImage.TYPE_INT_ARGB);
-        gg = imgPresidentName.createGraphics();
-        gg.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-                            RenderingHints.VALUE_ANTIALIAS_ON);
-        gg.setColor(Color.BLACK);
-        gg.setFont(f);
-        gg.drawString(textPresidentName, 0, fm.getHeight()-fm.getDescent());
-        gg.dispose();
-        
-        w = fm.stringWidth(badge.primaryText);
-        w = w == 0 ? 1 : w;
-        imgPrimary = new BufferedImage(w,
-                                       fm.getHeight(),
-                                       BufferedImage.TYPE_INT_ARGB);
-        gg = imgPrimary.createGraphics();
-        gg.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-                            RenderingHints.VALUE_ANTIALIAS_ON);
-        gg.setColor(Color.WHITE);
-        gg.setFont(f);
-        gg.drawString(badge.primaryText, 0, fm.getHeight()-fm.getDescent());
-        gg.dispose();
-        
-        w = fm.stringWidth(badge.secondaryText);
-        w = w == 0 ? 1 : w;
-        imgSecondary = new BufferedImage(w,
-                                         fm.getHeight(),
-                                         BufferedImage.TYPE_INT_ARGB);
-        gg = imgSecondary.createGraphics();
-        gg.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-                            RenderingHints.VALUE_ANTIALIAS_ON);
-        gg.setColor(Color.BLACK);
-        gg.setFont(f);
-        gg.drawString(badge.secondaryText, 0, fm.getHeight()-fm.getDescent());
-        gg.dispose();
+        // raster text is rendered at the initial font size, scaled down and
+        // shared through the ImageTools text cache
+        Font plain = new Font(font, Font.PLAIN, originalFontSize);
+        Font bold = new Font(font, Font.BOLD, originalFontSize);
+        boolean direct = TextSprite.isDirect(textMode) || isResampled(g);
         
         y = (int)(topPadding * d.height);
         h = (int)(mainTextHeight * d.height);
-        w = (int)((float)h / imgCertification.getHeight() *
-                  imgCertification.getWidth());
-        x = (int)(d.width / 2.0f - w / 2.0f);
-        sprite = ImageTools.scale(imgCertification, w, h);
-        g.drawImage(sprite, x, y, null);
+        if(!variable) {
+            sprite = TextSprite.create(g, direct, plain, textCertification,
+                                       Color.BLACK, h, Integer.MAX_VALUE);
+            w = sprite.getWidth();
+            x = (int)(d.width / 2.0f - w / 2.0f);
+            sprite.draw(g, x, y);
+        }
         
         y += (int)(h + majorSpacing * d.height);
         h = (int)(nameHeight * d.height);
-        w = (int)((float)h / imgPrimary.getHeight() *
-                  imgPrimary.getWidth());
-        x = (int)(d.width / 2.0f - w / 2.0f);
-        sprite = ImageTools.scale(imgPrimary, w, h);
-        g.setColor(textBackgroundColor);
-        g.fillRoundRect(x - (int)(0.03f*d.width),
-                        y,
-                        w + (int)(0.06f*d.width),
-                        h, 
-                        (int)(0.05f*d.height), (int)(0.05f*d.height));
-        g.drawImage(sprite, x, y, null);
+        if(variable) {
+            sprite = TextSprite.create(g, direct, bold, badge.primaryText,
+                                       Color.WHITE, h, Integer.MAX_VALUE);
+            w = sprite.getWidth();
+            x = (int)(d.width / 2.0f - w / 2.0f);
+            g.setColor(textBackgroundColor);
+            g.fillRoundRect(x - (int)(0.03f*d.width),
+                            y,
+                            w + (int)(0.06f*d.width),
+                            h, 
+                            (int)(0.05f*d.height), (int)(0.05f*d.height));
+            sprite.draw(g, x, y);
+        }
         
         y += (int)(h + minorSpacing * d.height);
         h = (int)(institutionHeight * d.height);
-        w = (int)((float)h / imgSecondary.getHeight() *
-                  imgSecondary.getWidth());
-        x = (int)(d.width / 2.0f - w / 2.0f);
-        sprite = ImageTools.scale(imgSecondary, w, h);
-        g.drawImage(sprite, x, y, null);
+        if(variable) {
+            sprite = TextSprite.create(g, direct, bold, badge.secondaryText,
+                                       Color.BLACK, h, Integer.MAX_VALUE);
+            w = sprite.getWidth();
+            x = (int)(d.width / 2.0f - w / 2.0f);
+            sprite.draw(g, x, y);
+        }
         
         y += (int)(h + majorSpacing * d.height);
         h = (int)(mainTextHeight * d.height);
-        w = (int)((float)h / imgParticipation.getHeight() *
-                  imgParticipation.getWidth());
-        x = (int)(d.width / 2.0f - w / 2.0f);
-        sprite = ImageTools.scale(imgParticipation, w, h);
-        g.drawImage(sprite, x, y, null);
+        if(variable) {
+            String textParticipationFinal = textParticipation;
+            for(String line : badge.getExtraData()) {
+                if(line.trim().startsWith("text-participation::")) {
+                    String tokens[] = line.trim().split("::", 2);
+                    if(tokens.length == 2) {
+                        textParticipationFinal = tokens[1];
+                    }
+                }
+            }
+            sprite = TextSprite.create(g, direct, plain, textParticipationFinal,
+                                       Color.BLACK, h, Integer.MAX_VALUE);
+            w = sprite.getWidth();
+            x = (int)(d.width / 2.0f - w / 2.0f);
+            sprite.draw(g, x, y);
+            // the rest of the certificate is static
+            return;
+        }
         
         y += (int)(h + majorSpacing * d.height);
         h = (int)(competitionTitleHeight * d.height);
-        w = (int)((float)h / imgCompetitionTitle.getHeight() *
-                  imgCompetitionTitle.getWidth());
+        sprite = TextSprite.create(g, direct, bold, textCompetitionTitle,
+                                   Color.BLACK, h, Integer.MAX_VALUE);
+        w = sprite.getWidth();
         x = (int)(d.width / 2.0f - w / 2.0f);
-        sprite = ImageTools.scale(imgCompetitionTitle, w, h);
-        g.drawImage(sprite, x, y, null);
+        sprite.draw(g, x, y);
         
         y += (int)(h + majorSpacing * d.height);
         h = (int)(mainTextHeight * d.height);
-        w = (int)((float)h / imgHostTitle.getHeight() *
-                  imgHostTitle.getWidth());
+        sprite = TextSprite.create(g, direct, plain, textHostTitle,
+                                   Color.BLACK, h, Integer.MAX_VALUE);
+        w = sprite.getWidth();
         x = (int)(d.width / 2.0f - w / 2.0f);
-        sprite = ImageTools.scale(imgHostTitle, w, h);
-        g.drawImage(sprite, x, y, null);
+        sprite.draw(g, x, y);
         
         y += (int)(h + minorSpacing * d.height);
         h = (int)(mainTextHeight * d.height);
-        w = (int)((float)h / imgHostInstitution.getHeight() *
-                  imgHostInstitution.getWidth());
+        sprite = TextSprite.create(g, direct, plain, textHostInstitution,
+                                   Color.BLACK, h, Integer.MAX_VALUE);
+        w = sprite.getWidth();
         x = (int)(d.width / 2.0f - w / 2.0f);
-        sprite = ImageTools.scale(imgHostInstitution, w, h);
-        g.drawImage(sprite, x, y, null);
+        sprite.draw(g, x, y);
         
         y += (int)(h + minorSpacing * d.height);
         h = (int)(dateLocationHeight * d.height);
-        w = (int)((float)h / imgDateLocation.getHeight() *
-                  imgDateLocation.getWidth());
+        sprite = TextSprite.create(g, direct, plain, textDateLocation,
+                                   Color.BLACK, h, Integer.MAX_VALUE);
+        w = sprite.getWidth();
         x = (int)(d.width / 2.0f - w / 2.0f);
-        sprite = ImageTools.scale(imgDateLocation, w, h);
-        g.drawImage(sprite, x, y, null);
+        sprite.draw(g, x, y);
         
         y = (int)(signaturesPosition * d.height);
         w = (int)(0.15f * d.width);
@@ -516,32 +517,29 @@ public class MercuryCertificateRenderer extends Renderer {
         
         y += (int)(h + 2 * minorSpacing * d.height);
         h = (int)(staffNamesHeight * d.height);
-        w = (int)((float)h / imgAdvisorName.getHeight() *
-                  imgAdvisorName.getWidth());
+        sprite = TextSprite.create(g, direct, bold, textAdvisorName,
+                                   Color.BLACK, h, Integer.MAX_VALUE);
+        w = sprite.getWidth();
         x = (int)(0.5f * 0.35f * d.width) - w / 2;
-        sprite = ImageTools.scale(imgAdvisorName, w, h);
-        g.drawImage(sprite, x, y, null);
-        w = (int)((float)h / imgPresidentName.getHeight() *
-                  imgPresidentName.getWidth());
+        sprite.draw(g, x, y);
+        sprite = TextSprite.create(g, direct, bold, textPresidentName,
+                                   Color.BLACK, h, Integer.MAX_VALUE);
+        w = sprite.getWidth();
         x = (int)((1 - 0.5f * 0.35f) * d.width) - w / 2;
-        sprite = ImageTools.scale(imgPresidentName, w, h);
-        g.drawImage(sprite, x, y, null);
+        sprite.draw(g, x, y);
         
         y += (int)(h + minorSpacing * d.height);
         h = (int)(staffTitleHeight * d.height);
-        w = (int)((float)h / imgAdvisorTitle.getHeight() *
-                  imgAdvisorTitle.getWidth());
+        sprite = TextSprite.create(g, direct, plain, textAdvisorTitle,
+                                   Color.BLACK, h, Integer.MAX_VALUE);
+        w = sprite.getWidth();
         x = (int)(0.5f * 0.35f * d.width) - w / 2;
-        sprite = ImageTools.scale(imgAdvisorTitle, w, h);
-        g.drawImage(sprite, x, y, null);
-        w = (int)((float)h / imgPresidentTitle.getHeight() *
-                  imgPresidentTitle.getWidth());
+        sprite.draw(g, x, y);
+        sprite = TextSprite.create(g, direct, plain, textPresidentTitle,
+                                   Color.BLACK, h, Integer.MAX_VALUE);
+        w = sprite.getWidth();
         x = (int)((1 - 0.5f * 0.35f) * d.width) - w / 2;
-        sprite = ImageTools.scale(imgPresidentTitle, w, h);
-        g.drawImage(sprite, x, y, null);
-        
-        g.dispose();
-        return img;
+        sprite.draw(g, x, y);
     }
     
     @Override
@@ -561,8 +559,8 @@ public class MercuryCertificateRenderer extends Renderer {
             MainWindow.getFontSelectDialog().showDialog();
             String fontName = MainWindow.getFontSelectDialog().getFontName();
             if(fontName != null) {
-                font = fontName;
-                paneFont.setText(font);
+                setProperty("font", fontName);
+                paneFont.setText(fontName);
             }
         });
         pane.add(paneFont);
@@ -802,7 +800,8 @@ public class MercuryCertificateRenderer extends Renderer {
     private TextInputPane paneTopPadding;
     private TextInputPane paneSignaturesPosition;
     
-    private void applySettings() {
+    private synchronized void applySettings() {
+        snapshot = null;
         textCertification = paneCertification.getText();
         textParticipation = paneParticipation.getText();
         textCompetitionTitle = paneCompetitionTitle.getText();
@@ -0,0 +1,498 @@
+/*
+    Copyright 2017 Wira Mulia
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+package org.osumercury.badgemaker.renderers;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Composite;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Polygon;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.osumercury.badgemaker.Badge;
+import org.osumercury.badgemaker.ImageTools;
+import org.osumercury.badgemaker.Log;
+import org.osumercury.badgemaker.Renderer;
+import org.osumercury.badgemaker.TextSprite;
+
+/**
+ * A line of a renderer script, parsed once when the script is loaded
+ *
+ * @author wira
+ */
+abstract class ScriptCommand {
+    private static final Pattern TOKEN =
+            Pattern.compile("([^\"]\\S*|\".+?\")\\s*");
+
+    private final int lineNumber;
+    private final String line;
+
+    protected ScriptCommand(int lineNumber, String line) {
+        this.lineNumber = lineNumber;
+        this.line = line;
+    }
+
+    public int getLineNumber() {
+        return lineNumber;
+    }
+
+    public String getLine() {
+        return line;
+    }
+
+    /**
+     * Whether the command uses badge data: the badge texts, number, colors
+     * or background image
+     */
+    public abstract boolean dependsOnBadge();
+
+    public abstract void execute(Graphics2D g, Badge badge, Dimension d,
+                                 ScriptableRenderer r) throws IOException;
+
+    /**
+     * Size the command draws the badge background at on a badge of size d,
+     * or null if it does not use the background
+     */
+    public Dimension getBackgroundSize(Dimension d) {
+        return null;
+    }
+
+    /**
+     * File the command reads when it is executed, or null if there is none
+     */
+    public File getInputFile() {
+        return null;
+    }
+
+    /**
+     * Parse a script line
+     *
+     * @return the command, or null for blank lines and unknown commands
+     * @throws IllegalArgumentException if the line is malformed
+     */
+    public static ScriptCommand compile(String line, int lineNumber,
+                                        File scriptPath) {
+        List<String> tokens = tokenize(line);
+        if(tokens.isEmpty()) {
+            return null;
+        }
+        try {
+            switch(tokens.get(0)) {
+                case "poly":
+                    return new Poly(lineNumber, line, tokens);
+                case "oval":
+                    return new Oval(lineNumber, line, tokens);
+                case "circle":
+                    return new Circle(lineNumber, line, tokens);
+                case "primarytext":
+                case "secondarytext":
+                case "number":
+                    return new Text(lineNumber, line, tokens.get(0), null,
+                                    tokens.subList(1, tokens.size()));
+                case "text":
+                    return new Text(lineNumber, line, tokens.get(0),
+                                    tokens.get(1),
+                                    tokens.subList(2, tokens.size()));
+                case "blit":
+                    return new Blit(lineNumber, line, tokens, scriptPath);
+                default:
+                    return null;
+            }
+        } catch(IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("missing arguments");
+        }
+    }
+
+    private static List<String> tokenize(String l) {
+        // http://stackoverflow.com/questions/7804335/split-string-on-spaces-in-java-except-if-between-quotes-i-e-treat-hello-wor
+        List<String> tokens = new ArrayList<>();
+        Matcher m = TOKEN.matcher(l);
+        while (m.find())
+            tokens.add(m.group(1).replaceAll("\"", ""));
+        return tokens;
+    }
+
+    private static float percent(String value) {
+        return Float.parseFloat(value) / 100;
+    }
+
+    /**
+     * A fixed color or one of the badge color keywords
+     */
+    private static class ColorRef {
+        private final String keyword;
+        private final Color color;
+
+        public ColorRef(String value) {
+            switch(value) {
+                case "bg":
+                case "textbg":
+                case "text":
+                    keyword = value;
+                    color = null;
+                    break;
+                default:
+                    keyword = null;
+                    color = ImageTools.parseHexColor(value);
+            }
+        }
+
+        public boolean dependsOnBadge() {
+            return keyword != null;
+        }
+
+        public Color get(Badge badge) {
+            return keyword == null ? color :
+                   ScriptableRenderer.parseColor(badge, keyword);
+        }
+    }
+
+    /**
+     * A position keyword or a percentage of the badge dimension
+     */
+    private static class Position {
+        private final String keyword;
+        private final float value;
+
+        public Position(String value) {
+            switch(value) {
+                case "left":
+                case "top":
+                case "right":
+                case "bottom":
+                case "centered":
+                    this.keyword = value;
+                    this.value = 0;
+                    break;
+                default:
+                    this.keyword = null;
+                    this.value = percent(value);
+            }
+        }
+
+        public int get(int bounds, int dim) {
+            return keyword == null ? (int)(value * bounds) :
+                   ScriptableRenderer.parsePosition(bounds, dim, keyword);
+        }
+    }
+
+    private static class Poly extends ScriptCommand {
+        private final boolean fill;
+        private final ColorRef color;
+        private final float[] xs;
+        private final float[] ys;
+
+        public Poly(int lineNumber, String line, List<String> tokens) {
+            super(lineNumber, line);
+            fill = tokens.get(1).equals("fill");
+            color = new ColorRef(tokens.get(2));
+            List<String> points = tokens.subList(3, tokens.size());
+            xs = new float[points.size()];
+            ys = new float[points.size()];
+            for(int i = 0; i < points.size(); i++) {
+                String[] coords = points.get(i).split(",");
+                xs[i] = percent(coords[0]);
+                ys[i] = percent(coords[1]);
+            }
+        }
+
+        @Override
+        public boolean dependsOnBadge() {
+            return color.dependsOnBadge();
+        }
+
+        @Override
+        public void execute(Graphics2D g, Badge badge, Dimension d,
+                            ScriptableRenderer r) {
+            Polygon p = new Polygon();
+            for(int i = 0; i < xs.length; i++) {
+                p.addPoint((int)(xs[i] * d.width), (int)(ys[i] * d.height));
+            }
+            g.setColor(color.get(badge));
+            if(fill) {
+                g.fillPolygon(p);
+            } else {
+                g.drawPolygon(p);
+            }
+        }
+    }
+
+    private static class Oval extends ScriptCommand {
+        private final boolean fill;
+        private final ColorRef color;
+        private final float x, y, w, h;
+
+        public Oval(int lineNumber, String line, List<String> tokens) {
+            super(lineNumber, line);
+            fill = tokens.get(1).equals("fill");
+            color = new ColorRef(tokens.get(2));
+            x = percent(tokens.get(3));
+            y = percent(tokens.get(4));
+            w = percent(tokens.get(5));
+            h = percent(tokens.get(6));
+        }
+
+        @Override
+        public boolean dependsOnBadge() {
+            return color.dependsOnBadge();
+        }
+
+        @Override
+        public void execute(Graphics2D g, Badge badge, Dimension d,
+                            ScriptableRenderer r) {
+            int px = (int)(x * d.width);
+            int py = (int)(y * d.height);
+            int pw = (int)(w * d.width);
+            int ph = (int)(h * d.height);
+            g.setColor(color.get(badge));
+            if(fill) {
+                g.fillOval(px-pw/2, py-ph/2, pw, ph);
+            } else {
+                g.drawOval(px-pw/2, py-ph/2, pw, ph);
+            }
+        }
+    }
+
+    private static class Circle extends ScriptCommand {
+        private final boolean fill;
+        private final ColorRef color;
+        private final float x, y, dia;
+        private final boolean byWidth;
+
+        public Circle(int lineNumber, String line, List<String> tokens) {
+            super(lineNumber, line);
+            fill = tokens.get(1).equals("fill");
+            color = new ColorRef(tokens.get(2));
+            x = percent(tokens.get(3));
+            y = percent(tokens.get(4));
+            byWidth = tokens.get(5).equals("width");
+            dia = percent(tokens.get(6));
+        }
+
+        @Override
+        public boolean dependsOnBadge() {
+            return color.dependsOnBadge();
+        }
+
+        @Override
+        public void execute(Graphics2D g, Badge badge, Dimension d,
+                            ScriptableRenderer r) {
+            int px = (int)(x * d.width);
+            int py = (int)(y * d.height);
+            int pd = (int)(dia * (byWidth ? d.width : d.height));
+            g.setColor(color.get(badge));
+            if(fill) {
+                g.fillOval(px-pd/2, py-pd/2, pd, pd);
+            } else {
+                g.drawOval(px-pd/2, py-pd/2, pd, pd);
+            }
+        }
+    }
+
+    private static class Text extends ScriptCommand {
+        private final String source;
+        private final String str;
+        private final ColorRef color;
+        private final String font;
+        private final int style;
+        private final Position x, y;
+        private final float w, h;
+        private final String justify;
+
+        public Text(int lineNumber, String line, String source, String str,
+                    List<String> tokens) {
+            super(lineNumber, line);
+            this.source = source;
+            this.str = str;
+            color = new ColorRef(tokens.get(0));
+            font = tokens.get(1);
+            style = (tokens.get(2).contains("bold") ? Font.BOLD : 0) |
+                    (tokens.get(2).contains("italic") ? Font.ITALIC : 0);
+            x = new Position(tokens.get(3));
+            y = new Position(tokens.get(4));
+            w = percent(tokens.get(5));
+            h = percent(tokens.get(6));
+            justify = tokens.size() == 8 ? tokens.get(7) : null;
+        }
+
+        @Override
+        public boolean dependsOnBadge() {
+            return str == null || color.dependsOnBadge();
+        }
+
+        @Override
+        public void execute(Graphics2D g, Badge badge, Dimension d,
+                            ScriptableRenderer r) {
+            String s;
+            switch(source) {
+                case "primarytext":
+                    s = badge.primaryText;
+                    break;
+                case "secondarytext":
+                    s = badge.secondaryText;
+                    break;
+                case "number":
+                    if(badge.number == -1) {
+                        return;
+                    }
+                    s = String.valueOf(badge.number);
+                    break;
+                default:
+                    s = str;
+            }
+            if(s.equals("")) {
+                return;
+            }
+            int pw = (int)(w * d.width);
+            int ph = (int)(h * d.height);
+            // scripts have always measured text without the surface hints
+            TextSprite text = TextSprite.create(null, r.isDirectText() ||
+                    Renderer.isResampled(g),
+                    new Font(font, style, r.getFontSizeInitial()), s,
+                    color.get(badge), ph, pw);
+
+            int px = x.get(d.width, pw);
+            int py = y.get(d.height, ph);
+
+            // justify
+            if(justify != null) {
+                switch(justify) {
+                    case "centered":
+                        px += (pw-text.getWidth())/2;
+                        break;
+                    case "right":
+                        px += (pw-text.getWidth());
+                }
+            }
+
+            text.draw(g, px, py+(ph-text.getHeight())/2);
+        }
+    }
+
+    private static class Blit extends ScriptCommand {
+        private final File path;
+        private final String mode;
+        private final float a, b;
+        private final Position x, y;
+        private final int alpha;
+
+        public Blit(int lineNumber, String line, List<String> tokens,
+                    File scriptPath) {
+            super(lineNumber, line);
+            if(tokens.get(1).equals("bg")) {
+                path = null;
+            } else {
+                path = new File(scriptPath, tokens.get(1));
+            }
+            switch(tokens.get(2)) {
+                case "width":
+                case "height":
+                    mode = tokens.get(2);
+                    a = percent(tokens.get(3));
+                    b = 0;
+                    break;
+                default:
+                    mode = "box";
+                    a = percent(tokens.get(2));
+                    b = percent(tokens.get(3));
+            }
+            x = new Position(tokens.get(4));
+            y = new Position(tokens.get(5));
+            // alpha command
+            alpha = tokens.size() == 7 ? Integer.parseInt(tokens.get(6)) : 100;
+        }
+
+        @Override
+        public boolean dependsOnBadge() {
+            return path == null;
+        }
+
+        @Override
+        public File getInputFile() {
+            return path;
+        }
+
+        @Override
+        public Dimension getBackgroundSize(Dimension d) {
+            if(path != null) {
+                return null;
+            }
+            switch(mode) {
+                case "width":
+                    return new Dimension((int)(a * d.width), 0);
+                case "height":
+                    return new Dimension(0, (int)(a * d.height));
+                default:
+                    return new Dimension((int)(a * d.width),
+                                         (int)(b * d.height));
+            }
+        }
+
+        @Override
+        public void execute(Graphics2D g, Badge badge, Dimension d,
+                            ScriptableRenderer r) throws IOException {
+            BufferedImage img;
+            if(path == null) {
+                img = badge.getBackground(r.getBackgroundSize(badge));
+            } else {
+                Log.d(1, r + ".render: blit " + path.getAbsolutePath());
+                img = ImageTools.get(path);
+            }
+            if(img == null) {
+                return;
+            }
+            int w, h;
+            switch(mode) {
+                case "width":
+                    w = (int)(a * d.width);
+                    h = (int)((float)w/img.getWidth()*img.getHeight());
+                    break;
+                case "height":
+                    h = (int)(a * d.height);
+                    w = (int)((float)h/img.getHeight()*img.getWidth());
+                    break;
+                default:
+                    w = (int)(a * d.width);
+                    h = (int)((float)w/img.getWidth()*img.getHeight());
+                    int hLimit = (int)(b * d.height);
+                    if(h > hLimit) {
+                        h = hLimit;
+                        w = (int)((float)h/img.getHeight()*img.getWidth());
+                    }
+            }
+            if(Renderer.isResampled(g)) {
+                // the surface scales the image, blend instead of baking alpha
+                Composite c = g.getComposite();
+                g.setComposite(AlphaComposite.getInstance(
+                        AlphaComposite.SRC_OVER,
+                        ImageTools.clampAlpha(alpha) / 100.0f));
+                g.drawImage(img, x.get(d.width, w), y.get(d.height, h),
+                            w, h, null);
+                g.setComposite(c);
+                return;
+            }
+            g.drawImage(ImageTools.getScaled(img, w, h, alpha),
+                        x.get(d.width, w), y.get(d.height, h), null);
+        }
+    }
+}
@@ -17,9 +17,7 @@ package org.osumercury.badgemaker.renderers;
 
 import java.awt.Color;
 import java.awt.Dimension;
-import java.awt.Font;
 import java.awt.Graphics2D;
-import java.awt.Polygon;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.File;
@@ -27,9 +25,10 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.swing.Box;
 import javax.swing.BoxLayout;
 import javax.swing.JPanel;
@@ -39,6 +38,7 @@ import org.osumercury.badgemaker.ImageTools;
 import org.osumercury.badgemaker.Log;
 import org.osumercury.badgemaker.Main;
 import org.osumercury.badgemaker.Renderer;
+import org.osumercury.badgemaker.TextSprite;
 import org.osumercury.badgemaker.gui.GUI;
 import org.osumercury.badgemaker.gui.TextInputPane;
 
@@ -49,29 +49,78 @@ import org.osumercury.badgemaker.gui.TextInputPane;
 public class ScriptableRenderer extends Renderer {
     private String scriptFile;
     private File scriptPath;
-    private List<String> script;
+    private List<ScriptCommand> script;
     private int originalFontSize = 200;
+    private String textMode = TextSprite.MODE_RASTER;
+    private boolean frozen = false;
+    private ScriptableRenderer snapshot;
+    private List<Segment> segments;
+    
+    private static final int MIN_LAYER_LINES = 2;
 
     public ScriptableRenderer() {
         addProperty("script-file", Renderer.Property.STRING, 
                     "script file to execute");
         addProperty("font-size-initial", Property.INTEGER, "" + originalFontSize,
                     "initial full resolution font size");
+        addProperty("text-mode", Property.STRING, textMode,
+                    "text drawing {\"raster\", \"direct\"}");
+    }
+    
+    private ScriptableRenderer(ScriptableRenderer r) {
+        this();
+        scriptFile = r.scriptFile;
+        scriptPath = r.scriptPath;
+        // the command list is replaced, never modified, on reload
+        script = r.script;
+        if(script != null) {
+            segments = split(script);
+        }
+        originalFontSize = r.originalFontSize;
+        textMode = r.textMode;
+        frozen = true;
+    }
+    
+    @Override
+    public synchronized Renderer snapshot() {
+        if(frozen) {
+            return this;
+        }
+        if(snapshot == null) {
+            snapshot = new ScriptableRenderer(this);
+        }
+        return snapshot;
+    }
+    
+    @Override
+    public boolean isSnapshot() {
+        return frozen;
     }
     
     @Override
-    public void setProperty(String key, String value) {
+    public synchronized void setProperty(String key, String value) {
+        if(frozen) {
+            Log.err("Renderer snapshot is read-only, ignoring " + key);
+            return;
+        }
+        snapshot = null;
         Log.d(0, Main.pad(25, key) + " " + value);
         try {
             switch(key) {
                 case "font-size-initial":
                     originalFontSize = Integer.parseInt(value);
                     break;
+                case "text-mode":
+                    textMode = value;
+                    break;
                 case "script-file":
                     scriptFile = value;
                     try {
-                        script = Files.readAllLines(Paths.get(scriptFile));
-                        scriptPath = (new File(scriptFile)).getParentFile();
+                        // a bare file name has no parent until made absolute
+                        scriptPath = new File(scriptFile).getAbsoluteFile()
+                                .getParentFile();
+                        script = Collections.unmodifiableList(compile(
+                                Files.readAllLines(Paths.get(scriptFile))));
                     } catch(IOException ioe) {
                         Log.err("Failed to read script file " + scriptFile + "\n" +
                                 ioe.getMessage());
@@ -88,12 +137,109 @@ public class ScriptableRenderer extends Renderer {
         }
     }
     
+    @Override
+    public List<File> getInputFiles() {
+        List<File> files = new ArrayList<>();
+        if(scriptFile != null) {
+            files.add(new File(scriptFile));
+        }
+        List<ScriptCommand> commands = script;
+        if(commands != null) {
+            for(ScriptCommand command : commands) {
+                File f = command.getInputFile();
+                if(f != null && !files.contains(f)) {
+                    files.add(f);
+                }
+            }
+        }
+        return files;
+    }
+    
+    @Override
+    public synchronized void reload() {
+        if(frozen || scriptFile == null) {
+            return;
+        }
+        try {
+            // a script that cannot be read, e.g. while it is being saved,
+            // leaves the previous one in place
+            script = Collections.unmodifiableList(compile(
+                    Files.readAllLines(Paths.get(scriptFile))));
+            snapshot = null;
+            Log.d(0, "Reloaded " + scriptFile);
+        } catch(IOException ioe) {
+            Log.err("Failed to read script file " + scriptFile + "\n" +
+                    ioe.getMessage());
+        }
+    }
+    
+    @Override
+    public Object getProperty(String key) {
+        switch(key) {
+            case "script-file":         return scriptFile;
+            case "font-size-initial":   return originalFontSize;
+            case "text-mode":           return textMode;
+            default:
+                System.err.println("Unknown property key: " + key);
+        }
+        return null;
+    }
+    
+    int getFontSizeInitial() {
+        return originalFontSize;
+    }
+    
+    boolean isDirectText() {
+        return TextSprite.isDirect(textMode);
+    }
+    
+    @Override
+    public Dimension getBackgroundSize(Badge badge) {
+        Dimension d = badge.getPixelDimension();
+        Dimension box = null;
+        if(script != null) {
+            for(ScriptCommand command : script) {
+                Dimension size = command.getBackgroundSize(d);
+                if(size == null) {
+                    continue;
+                }
+                if(box == null) {
+                    box = size;
+                } else {
+                    box = new Dimension(Math.max(box.width, size.width),
+                                        Math.max(box.height, size.height));
+                }
+            }
+        }
+        return box != null ? box : d;
+    }
+    
     @Override
     public BufferedImage render(Badge badge) {
+        if(!frozen) {
+            return snapshot().render(badge);
+        }
         Dimension d = badge.getPixelDimension();
         BufferedImage out = new BufferedImage(d.width, d.height, 
                                               BufferedImage.TYPE_INT_ARGB);
         Graphics2D g = out.createGraphics();
+        draw(g, badge, d);
+        g.dispose();
+        return out;
+    }
+    
+    @Override
+    public void renderTo(Graphics2D g, Badge badge) {
+        if(!frozen) {
+            snapshot().renderTo(g, badge);
+            return;
+        }
+        Graphics2D g2 = (Graphics2D) g.create();
+        draw(g2, badge, badge.getPixelDimension());
+        g2.dispose();
+    }
+    
+    private void draw(Graphics2D g, Badge badge, Dimension d) {
         g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
                            RenderingHints.VALUE_ANTIALIAS_ON);
         g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, 
@@ -103,181 +249,121 @@ public class ScriptableRenderer extends Renderer {
         
         if(script == null || script.isEmpty()) {
             Log.err("Script is undefined");
-            return out;
+            return;
         }
         
-        int x, y, w, h, dia;
-        Color color;
+        // layers are badge sized rasters, other surfaces run every command
+        boolean layers = !isResampled(g);
+        for(Segment segment : segments) {
+            if(segment.isStatic && layers) {
+                g.drawImage(getLayer(segment, badge, d), 0, 0, null);
+                continue;
+            }
+            for(ScriptCommand command : segment.commands) {
+                execute(g, badge, d, command);
+            }
+        }
+    }
+    
+    /**
+     * Pre-rendered layer of a run of badge independent script lines. Drawing
+     * the layer over the badge gives the same result as running the lines
+     */
+    private BufferedImage getLayer(Segment segment, Badge badge, Dimension d) {
+        String key = d.width + "x" + d.height;
+        return segment.layers.computeIfAbsent(key, (k) -> {
+            Log.d(1, this + ".render: building layer at line " +
+                     segment.firstLine + " " + k);
+            BufferedImage layer = new BufferedImage(d.width, d.height,
+                                                    BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = layer.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                               RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, 
+                               RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            for(ScriptCommand command : segment.commands) {
+                execute(g, badge, d, command);
+            }
+            g.dispose();
+            return layer;
+        });
+    }
+    
+    private void execute(Graphics2D g, Badge badge, Dimension d,
+                         ScriptCommand command) {
+        try {
+            command.execute(g, badge, d, this);
+        } catch(Exception e) {
+            Log.d(0, this + ".render(" + scriptFile + ":" +
+                     command.getLineNumber() + "): failed to execute \'" +
+                     command.getLine() + "\'\n\t" +
+                    "reason: " + e.getMessage());
+            if(Log.debugLevel > 0) {
+                e.printStackTrace();
+            }
+        }
+    }
+    
+    /**
+     * Parse the script lines into commands, malformed lines are reported
+     * and skipped
+     */
+    private List<ScriptCommand> compile(List<String> lines) {
+        List<ScriptCommand> commands = new ArrayList<>();
         int lineNumber = 1;
-        String[] coords;
-        Polygon p;
-        String str;
-        
-        for(String l : script) {
+        for(String l : lines) {
             try {
-                // http://stackoverflow.com/questions/7804335/split-string-on-spaces-in-java-except-if-between-quotes-i-e-treat-hello-wor
-                List<String> tokens = new ArrayList<>();
-                Matcher m = Pattern.compile("([^\"]\\S*|\".+?\")\\s*").matcher(l);
-                while (m.find())
-                    tokens.add(m.group(1).replaceAll("\"", ""));
-                switch(tokens.get(0)) {
-                    case "poly":
-                        color = parseColor(badge, tokens.get(2));
-                        p = new Polygon();
-                        for(String pStr : tokens.subList(3, tokens.size())) {
-                            coords = pStr.split(",");
-                            x = (int)(Float.parseFloat(coords[0])/100 * (d.width));
-                            y = (int)(Float.parseFloat(coords[1])/100 * (d.height));
-                            p.addPoint(x, y);
-                        }
-                        g.setColor(color);
-                        if(tokens.get(1).equals("fill")) {
-                            g.fillPolygon(p);
-                        } else {
-                            g.drawPolygon(p);
-                        }
-                        break;
-                    case "oval":
-                        color = parseColor(badge, tokens.get(2));
-                        x = (int)(Float.parseFloat(tokens.get(3))/100 * (d.width));
-                        y = (int)(Float.parseFloat(tokens.get(4))/100 * (d.height));
-                        w = (int)(Float.parseFloat(tokens.get(5))/100 * (d.width));
-                        h = (int)(Float.parseFloat(tokens.get(6))/100 * (d.height));
-                        g.setColor(color);
-                        if(tokens.get(1).equals("fill")) {
-                            g.fillOval(x-w/2, y-h/2, w, h);
-                        } else {
-                            g.drawOval(x-w/2, y-h/2, w, h);
-                        }
-                        break;
-                    case "circle":
-                        color = parseColor(badge, tokens.get(2));
-                        x = (int)(Float.parseFloat(tokens.get(3))/100 * (d.width));
-                        y = (int)(Float.parseFloat(tokens.get(4))/100 * (d.height));
-                        if(tokens.get(5).equals("width")) {
-                            dia = (int)(Float.parseFloat(tokens.get(6))/100 * (d.width));
-                        } else {
-                            dia = (int)(Float.parseFloat(tokens.get(6))/100 * (d.height));
-                        }
-                        g.setColor(color);
-                        if(tokens.get(1).equals("fill")) {
-                            g.fillOval(x-dia/2, y-dia/2, dia, dia);
-                        } else {
-                            g.drawOval(x-dia/2, y-dia/2, dia, dia);
-                        }
-                        break;
-                    case "primarytext":
-                        str = badge.primaryText;
-                        drawText(g, badge, d, str, tokens.subList(1, tokens.size()));
-                        break;
-                    case "secondarytext":
-                        str = badge.secondaryText;
-                        drawText(g, badge, d, str, tokens.subList(1, tokens.size()));                       
-                        break;
-                    case "number":
-                        if(badge.number != -1) {
-                            str = String.valueOf(badge.number);
-                            drawText(g, badge, d, str, tokens.subList(1, tokens.size()));
-                        }
-                        break;
-                    case "text":
-                        drawText(g, badge, d, tokens.get(1), 
-                                 tokens.subList(2, tokens.size()));                        
-                        break;
-                    case "blit":
-                        BufferedImage img;
-                        if(tokens.get(1).equals("bg")) {
-                            img = badge.background;
-                        } else {
-                            File path = new File(scriptPath.getAbsolutePath() +
-                                             File.separator + tokens.get(1));
-                            Log.d(1, this + ".render: blit " + path.getAbsolutePath());
-                            img = ImageTools.get(path);
-                        }
-                        if(img == null) {
-                            continue;
-                        }
-                        switch(tokens.get(2)) {
-                            case "width":
-                                w = (int)(Float.parseFloat(tokens.get(3))/100 * d.width);
-                                h = (int)((float)w/img.getWidth()*img.getHeight());
-                                break;
-                            case "height":
-                                h = (int)(Float.parseFloat(tokens.get(3))/100 * d.height);
-                                w = (int)((float)h/img.getHeight()*img.getWidth());
-                                break;
-                            default:
-                                w = (int)(Float.parseFloat(tokens.get(2))/100 * d.width);
-                                h = (int)((float)w/img.getWidth()*img.getHeight());
-                                int hLimit = (int)(Float.parseFloat(tokens.get(3))/100 * d.height);
-                                if(h > hLimit) {
-                                    h = hLimit;
-                                    w = (int)((float)h/img.getHeight()*img.getWidth());
-                                }
-                        }
-                        x = parsePosition(d.width, w, tokens.get(4));                        
-                        y = parsePosition(d.height, h, tokens.get(5));
-                        BufferedImage scaled = ImageTools.scale(img, w, h);
-                        if(tokens.size() == 7) {
-                            // alpha command
-                            ImageTools.setAlpha(scaled, 
-                                                Integer.parseInt(tokens.get(6)));
-                        }
-                        g.drawImage(scaled, x, y, null);
-                        break;
+                ScriptCommand command = ScriptCommand.compile(l, lineNumber,
+                                                              scriptPath);
+                if(command != null) {
+                    commands.add(command);
                 }
             } catch(Exception e) {
-                Log.d(0, this + ".render(" + scriptFile + ":" +
-                         lineNumber + "): failed to parse \'" + l + "\'\n\t" +
-                        "reason: " + e.getMessage());
-                if(Log.debugLevel > 0) {
-                    e.printStackTrace();
-                }
+                Log.err(scriptFile + ":" + lineNumber + ": failed to parse \'" +
+                        l + "\'\n\treason: " + e.getMessage());
             }
             lineNumber++;
         }
-        
-        return out;
+        return commands;
     }
-        
-    private void drawText(Graphics2D g, Badge badge, Dimension d,
-                          String str, List<String> tokens) {        
-        if(str.equals("")) {
-            return;
+    
+    /**
+     * Split the script into runs of commands that either depend on the badge
+     * or not. Independent runs of a few commands or more are drawn as cached
+     * layers
+     */
+    private static List<Segment> split(List<ScriptCommand> script) {
+        List<Segment> segments = new ArrayList<>();
+        Segment current = null;
+        for(ScriptCommand command : script) {
+            boolean isStatic = !command.dependsOnBadge();
+            if(current == null || current.isStatic != isStatic) {
+                current = new Segment(command.getLineNumber(), isStatic);
+                segments.add(current);
+            }
+            current.commands.add(command);
         }
-        g.setColor(parseColor(badge, tokens.get(0)));
-        Font f = new Font(tokens.get(1), 
-                    (tokens.get(2).contains("bold") ? Font.BOLD : 0) |
-                    (tokens.get(2).contains("italic") ? Font.ITALIC : 0),
-                    originalFontSize);
-        g.setFont(f);
-        
-        int w = (int)(Float.parseFloat(tokens.get(5))/100 * d.width);
-        int h = (int)(Float.parseFloat(tokens.get(6))/100 * d.height);
-        
-        BufferedImage text = ImageTools.drawString(g.getFont(), str, 
-                g.getColor(), h, w);
-        
-        int x = parsePosition(d.width, w, tokens.get(3));
-        int y = parsePosition(d.height, h, tokens.get(4));
-        
-        // justify
-        if(tokens.size() == 8) {
-            switch(tokens.get(7)) {
-                case "centered":
-                    x += (w-text.getWidth())/2;
-                    break;
-                case "right":
-                    x += (w-text.getWidth());
+        for(Segment segment : segments) {
+            if(segment.commands.size() < MIN_LAYER_LINES) {
+                segment.isStatic = false;
             }
         }
-        
-        g.drawImage(text,
-                    x, 
-                    y+(h-text.getHeight())/2, 
-                    null);
+        return segments;
     }
     
+    private static class Segment {
+        private final int firstLine;
+        private final List<ScriptCommand> commands = new ArrayList<>();
+        private boolean isStatic;
+        private final Map<String, BufferedImage> layers =
+                new ConcurrentHashMap<>();
+        
+        public Segment(int firstLine, boolean isStatic) {
+            this.firstLine = firstLine;
+            this.isStatic = isStatic;
+        }
+    }
+        
     public static int parsePosition(int bounds, int dim, String value) {
         switch(value) {
             case "left":